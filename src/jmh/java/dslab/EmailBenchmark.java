@@ -0,0 +1,38 @@
+package dslab;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dslab.exception.MalformedInputException;
+
+/**
+ * Parsing of the addresses of {@code to} and {@code from} lines, with and without the interning registry.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailBenchmark {
+    private final String address = "trillian@earth.planet";
+
+    @Benchmark
+    public Email parse() throws MalformedInputException {
+        return new Email(address);
+    }
+
+    @Benchmark
+    public Email interned() throws MalformedInputException {
+        return Email.of(address);
+    }
+}
@@ -0,0 +1,68 @@
+package dslab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering of a message for logs, DMAP and relaying. {@code writeCommands} reuses the cached encoding, while
+ * {@code writeCommandsOfCopy} encodes the recipients of a fresh per-domain copy, as happens on the first delivery.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @Param({"1", "10"})
+    public int recipients;
+
+    @Param({"64", "4096"})
+    public int dataSize;
+
+    private final OutputStream out = OutputStream.nullOutputStream();
+    private Message msg;
+
+    @Setup
+    public void setUp() {
+        ArrayList<Email> to = new ArrayList<>();
+        for (int i = 0; i < recipients; i++)
+            to.add(Email.of("user" + i, "earth.planet"));
+        msg = new Message(to, Email.of("zaphod", "univer.ze"), "subject of the message", "x".repeat(dataSize));
+    }
+
+    @Benchmark
+    public String printTo() {
+        return msg.printTo();
+    }
+
+    @Benchmark
+    public String toStringOfMessage() {
+        return msg.toString();
+    }
+
+    @Benchmark
+    public void writeCommands() throws IOException {
+        msg.writeCommands(out);
+    }
+
+    @Benchmark
+    public void writeCommandsOfCopy() throws IOException {
+        msg.forRecipients(msg.getTo()).writeCommands(out);
+    }
+}
@@ -0,0 +1,96 @@
+package dslab.mailbox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dslab.Email;
+import dslab.Message;
+
+/**
+ * The mailbox operations behind DMTP {@code send} and DMAP {@code list}, {@code show} and {@code delete}, against an
+ * in-memory inbox of the given size. Storing deletes the message again and deleting puts it back, so the inbox keeps
+ * its size and both operations are measured as a pair. Logging below warnings is turned off, since storing a message
+ * logs an event that would otherwise be formatted and printed while measuring.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailboxBenchmark {
+
+    // Held so that the configured level isn't lost when the logger is garbage collected
+    private static final Logger logger = Logger.getLogger("dslab");
+
+    @Param({"10", "1000", "100000"})
+    public int inboxSize;
+
+    private final Email trillian = Email.of("trillian", "earth.planet");
+    private final OutputStream out = OutputStream.nullOutputStream();
+    private MailboxStore store;
+    private Mailbox inbox;
+    private Message middle;
+
+    @Setup
+    public void setUp() {
+        logger.setLevel(Level.WARNING);
+        store = new MailboxStore();
+        store.addUser(trillian);
+        inbox = store.get(trillian);
+        for (int i = 0; i < inboxSize; i++) {
+            Message msg = message("message " + i);
+            store.deliver(msg).join();
+            if (i == inboxSize / 2)
+                middle = msg;
+        }
+    }
+
+    private Message message(String subject) {
+        return new Message(new ArrayList<>(Arrays.asList(trillian)), Email.of("zaphod", "univer.ze"), subject, "data");
+    }
+
+    @Benchmark
+    public boolean storeMessage() {
+        Message msg = message("hello");
+        DMTPConnection.storeMessage(msg, store).join();
+        return store.delete(trillian, msg.getId()).join();
+    }
+
+    @Benchmark
+    public List<Message> list() {
+        return inbox.list();
+    }
+
+    @Benchmark
+    public Message show() throws IOException {
+        Message msg = inbox.get(middle.getId());
+        msg.writeData(out);
+        return msg;
+    }
+
+    @Benchmark
+    public boolean delete() {
+        boolean deleted = store.delete(trillian, middle.getId()).join();
+        inbox.add(middle);
+        return deleted;
+    }
+}
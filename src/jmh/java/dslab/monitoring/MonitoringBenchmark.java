@@ -0,0 +1,66 @@
+package dslab.monitoring;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a batched monitoring datagram and updating the counters, per record. The datagrams cycle through
+ * {@code senders} distinct addresses, so the counters for them exist after the warmup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitoringBenchmark {
+    private static final int RECORDS = 32;
+
+    @Param({"exact", "sketch"})
+    public String mode;
+
+    @Param({"100", "100000"})
+    public int senders;
+
+    private MonitoringListener listener;
+    private byte[][] datagrams;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Statistics statistics = "sketch".equals(mode)
+                ? new Statistics(10000, 360, 100, 0.001, 0.01)
+                : new Statistics(10000, 360);
+        // parse() only counts, the channel isn't used
+        listener = new MonitoringListener(null, statistics, "benchmark");
+        datagrams = new byte[Math.max(64, (senders + RECORDS - 1) / RECORDS)][];
+        int sender = 0;
+        for (int d = 0; d < datagrams.length; d++) {
+            StringBuilder datagram = new StringBuilder();
+            for (int r = 0; r < RECORDS; r++)
+                datagram.append("127.0.0.1:12345 user").append(sender++ % senders).append("@earth.planet\n");
+            datagrams[d] = datagram.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void parse() {
+        byte[] datagram = datagrams[next];
+        next = (next + 1) % datagrams.length;
+        listener.parse(datagram, datagram.length);
+    }
+}
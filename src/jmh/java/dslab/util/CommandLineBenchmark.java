@@ -0,0 +1,69 @@
+package dslab.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing and dispatching the lines of a DMTP session as {@code ClientConnection} and {@code DMTPConnection} do, next
+ * to the regex splitting they did before as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandLineBenchmark {
+    private static final String[] SESSION = {
+            "from zaphod@univer.ze",
+            "to trillian@earth.planet,arthur@earth.planet",
+            "subject hello from the other side",
+            "data some data of a message that spans a few words",
+            "send"
+    };
+
+    private static final CommandTable<Blackhole> COMMANDS = new CommandTable<Blackhole>()
+            .on("quit", (bh, line) -> bh.consume(line.tokens()))
+            .on("send", (bh, line) -> bh.consume(line.tokens()))
+            .on("to", (bh, line) -> bh.consume(line.token(1)))
+            .on("from", (bh, line) -> bh.consume(line.token(1)))
+            .on("subject", (bh, line) -> bh.consume(line.rest(1)))
+            .on("data", (bh, line) -> bh.consume(line.rest(1)));
+
+    private final CommandLine line = new CommandLine();
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public void commandTable(Blackhole bh) throws Exception {
+        for (String input : SESSION)
+            COMMANDS.dispatch(bh, line.parse(input));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public void regexSplit(Blackhole bh) {
+        for (String input : SESSION) {
+            if ("quit".equals(input) || "send".equals(input))
+                bh.consume(input);
+            else if ("to".equals(input.split("\\s+")[0]))
+                bh.consume(input.split("\\s+")[1]);
+            else if ("from".equals(input.split("\\s+")[0]))
+                bh.consume(input.split("\\s+")[1]);
+            else if ("subject".equals(input.split("\\s+")[0]))
+                bh.consume(input.split("\\s+", 2)[1]);
+            else if ("data".equals(input.split("\\s+")[0]))
+                bh.consume(input.split("\\s+", 2)[1]);
+        }
+    }
+}
@@ -2,61 +2,104 @@ package dslab;
 
 import dslab.exception.MalformedInputException;
 
-import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class Email {
-    private String username;
-    private String domain;
+/**
+ * An immutable {@code user@domain} address.
+ * <p>
+ * Addresses obtained through {@link #of(String)} and {@link #of(String, String)} are interned: every distinct address
+ * is parsed once and then shared by all messages that mention it, as is its domain string. Recipient lists of stored
+ * messages therefore only hold references to a few canonical instances instead of a copy of each address per message.
+ * Once the registry holds {@link #MAX_INTERNED} addresses, further addresses are still parsed but no longer
+ * interned, so that a flood of distinct addresses can't grow it without limit.
+ */
+public final class Email {
+    static final int MAX_INTERNED = 100_000;
+    private static final ConcurrentHashMap<String, Email> addresses = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> domains = new ConcurrentHashMap<>();
+
+    private final String username;
+    private final String domain;
+    private final String address;
 
     public Email(String email) throws MalformedInputException {
-        if (email.split("@").length != 2)
+        int at = email.indexOf('@');
+        if (at < 0 || email.indexOf('@', at + 1) >= 0)
             throw new MalformedInputException("error email addresses must be of the form user@domain: " + email);
-        if (email.split("@")[0].isBlank())
+        if (email.substring(0, at).isBlank())
             throw new MalformedInputException("error email addresses must be of the form user@domain" + email);
-        if (email.split("@")[1].isBlank())
+        if (email.substring(at + 1).isBlank())
             throw new MalformedInputException("error email addresses must be of the form user@domain" + email);
 
-        this.username = email.split("@")[0];
-        this.domain = email.split("@")[1];
+        this.username = email.substring(0, at);
+        this.domain = email.substring(at + 1);
+        this.address = email;
     }
 
     public Email(String username, String domain) {
         this.username = username;
         this.domain = domain;
+        this.address = username + '@' + domain;
     }
 
-    public String getUsername() {
-        return username;
+    private Email(String username, String domain, String address) {
+        this.username = username;
+        this.domain = domain;
+        this.address = address;
     }
 
-    public void setUsername(String username) {
-        this.username = username;
+    /**
+     * @return the canonical instance of the given address
+     * @throws MalformedInputException if it isn't of the form {@code user@domain}
+     */
+    public static Email of(String address) throws MalformedInputException {
+        Email email = addresses.get(address);
+        if (email != null)
+            return email;
+        return intern(new Email(address));
     }
 
-    public String getDomain() {
-        return domain;
+    /**
+     * @return the canonical instance of the address of the given user in the given domain
+     */
+    public static Email of(String username, String domain) {
+        Email email = addresses.get(username + '@' + domain);
+        if (email != null)
+            return email;
+        return intern(new Email(username, domain));
     }
 
-    public void setDomain(String domain) {
-        this.domain = domain;
+    private static Email intern(Email parsed) {
+        if (addresses.size() >= MAX_INTERNED)
+            return parsed;
+        String domain = domains.computeIfAbsent(parsed.domain, d -> d);
+        Email canonical = new Email(parsed.username, domain, parsed.address);
+        Email existing = addresses.putIfAbsent(canonical.address, canonical);
+        return existing != null ? existing : canonical;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getDomain() {
+        return domain;
     }
 
     @Override
     public String toString() {
-        return username + '@' + domain;
+        return address;
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        Email email = (Email) o;
-        return Objects.equals(getUsername(), email.getUsername()) &&
-                Objects.equals(getDomain(), email.getDomain());
+        return address.equals(((Email) o).address);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(getUsername(), getDomain());
+        return address.hashCode();
     }
 }
@@ -2,16 +2,32 @@ package dslab;
 
 import dslab.exception.MissingInputException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
 public class Message {
+    /**
+     * The id of a message that hasn't been assigned one yet.
+     */
+    public static final int NO_ID = -1;
+
     private ArrayList<Email> to = new ArrayList<>();
     private Email from;
     private String subject = "";
     private String data = "";
-    private Integer id;
+    private MessageBody body;
+    private int id = NO_ID;
+    // The DMTP encoding, see writeCommands. The content is shared with the copies made by forRecipients.
+    private Encoding content = new Encoding();
+    private volatile byte[] envelope;
+
+    private static final class Encoding {
+        private volatile byte[] bytes;
+    }
 
     public Message() {
     }
@@ -23,6 +39,55 @@ public class Message {
         this.data = data;
     }
 
+    /**
+     * @return a copy of this message addressed to the given recipients only. It shares the id, data and encoded
+     * content of this message, so it must not be modified.
+     */
+    public Message forRecipients(ArrayList<Email> recipients) {
+        Message copy = new Message(recipients, from, subject, data);
+        copy.body = body;
+        copy.id = id;
+        copy.content = content;
+        return copy;
+    }
+
+    /**
+     * Writes the DMTP commands that transfer this message, in the order {@code subject}, {@code data}, {@code to},
+     * {@code from}, {@code send}.
+     * <p>
+     * The commands are encoded on first use and kept, so sending the message again, e.g. on a retry, writes the same
+     * bytes without building any strings. The {@code subject} and {@code data} part is shared by all copies made by
+     * {@link #forRecipients}, so relaying a message to several domains encodes its data only once. The setters discard
+     * the encoding, but changing the recipient list in place does not.
+     */
+    public void writeCommands(OutputStream out) throws IOException {
+        out.write(content());
+        out.write(envelope());
+    }
+
+    private byte[] content() throws IOException {
+        Encoding content = this.content;
+        byte[] bytes = content.bytes;
+        if (bytes == null) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            encoded.write(("subject " + subject + "\ndata ").getBytes(StandardCharsets.UTF_8));
+            writeData(encoded);
+            encoded.write('\n');
+            bytes = encoded.toByteArray();
+            content.bytes = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] envelope() {
+        byte[] bytes = envelope;
+        if (bytes == null) {
+            bytes = ("to " + printTo() + "\nfrom " + from + "\nsend\n").getBytes(StandardCharsets.UTF_8);
+            envelope = bytes;
+        }
+        return bytes;
+    }
+
     public void allFieldsSet() throws MissingInputException {
         if (this.subject == null) this.subject = "";
         if (this.data == null) this.data = "";
@@ -32,12 +97,19 @@ public class Message {
 
     public void addTo(Email email) {
         to.add(email);
+        this.envelope = null;
     }
 
     public String printTo() {
         if (this.to.isEmpty())
             return null;
-        return this.to.stream().map(Object::toString).collect(Collectors.joining(","));
+        StringBuilder printed = new StringBuilder();
+        for (Email email : to) {
+            if (printed.length() > 0)
+                printed.append(',');
+            printed.append(email);
+        }
+        return printed.toString();
     }
 
     public ArrayList<Email> getTo() {
@@ -46,6 +118,7 @@ public class Message {
 
     public void setTo(ArrayList<Email> to) {
         this.to = to;
+        this.envelope = null;
     }
 
     public Email getFrom() {
@@ -54,6 +127,7 @@ public class Message {
 
     public void setFrom(Email from) {
         this.from = from;
+        this.envelope = null;
     }
 
     public String getSubject() {
@@ -62,21 +136,53 @@ public class Message {
 
     public void setSubject(String subject) {
         this.subject = subject;
+        this.content = new Encoding();
     }
 
     public String getData() {
-        return data;
+        return body != null ? body.read() : data;
     }
 
     public void setData(String data) {
         this.data = data;
+        this.body = null;
+        this.content = new Encoding();
+    }
+
+    /**
+     * @return the off-heap data of this message, or null if the data is held as a string
+     */
+    public MessageBody getBody() {
+        return body;
+    }
+
+    /**
+     * Replaces the data of this message by an off-heap body with the same content.
+     */
+    public void setBody(MessageBody body) {
+        this.body = body;
+        this.data = null;
+        this.content = new Encoding();
+    }
+
+    /**
+     * Writes the UTF-8 encoded data to the given stream, without decoding an off-heap body first.
+     */
+    public void writeData(OutputStream out) throws IOException {
+        if (body != null)
+            body.writeTo(out);
+        else if (data != null)
+            out.write(data.getBytes(StandardCharsets.UTF_8));
     }
 
-    public Integer getId() {
+    /**
+     * @return the id of this message, or {@link #NO_ID} if it hasn't been assigned one yet
+     */
+    public int getId() {
         return id;
     }
 
-    public void setId(Integer id) {
+    public void setId(int id) {
         this.id = id;
     }
 
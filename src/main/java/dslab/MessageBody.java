@@ -0,0 +1,26 @@
+package dslab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The data of a {@link Message} when it is kept outside the heap. Only the mailbox server stores bodies this way; on
+ * the wire and in the transfer server the data is always a plain string.
+ */
+public interface MessageBody {
+
+    /**
+     * @return the length of the UTF-8 encoded data in bytes
+     */
+    int length();
+
+    /**
+     * Decodes the data into a string, which costs a copy. Prefer {@link #writeTo} when the data is only passed on.
+     */
+    String read();
+
+    /**
+     * Writes the UTF-8 encoded data to the given stream without decoding it.
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,9 @@
+package dslab.exception;
+
+import java.io.IOException;
+
+public class BatchRejectedException extends IOException {
+    public BatchRejectedException(String errorMessage) {
+        super(errorMessage);
+    }
+}
@@ -0,0 +1,9 @@
+package dslab.exception;
+
+import java.io.IOException;
+
+public class PipeliningRejectedException extends IOException {
+    public PipeliningRejectedException(String errorMessage) {
+        super(errorMessage);
+    }
+}
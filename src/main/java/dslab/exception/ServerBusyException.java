@@ -0,0 +1,7 @@
+package dslab.exception;
+
+public class ServerBusyException extends Exception {
+    public ServerBusyException(String errorMessage) {
+        super(errorMessage);
+    }
+}
@@ -0,0 +1,193 @@
+package dslab.mailbox;
+
+import dslab.MessageBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Keeps message data in memory-mapped segment files ({@code <n>.body}) instead of the heap, so that a mailbox server
+ * holding a large number of messages only keeps their headers on the heap. Bodies are appended to the active segment;
+ * a full segment is sealed and its file is deleted once none of its bodies is held by a mailbox anymore.
+ * <p>
+ * The segments are a cache, not a durable store: they are cleared on startup and rebuilt from the
+ * {@link MessageLog} if one is used. Each body counts the mailboxes holding it, since a message to several local
+ * users is stored once and shared between their mailboxes.
+ */
+public class BodyStore {
+    private static final Logger logger = Logger.getLogger(BodyStore.class.getName());
+    private static final String SUFFIX = ".body";
+    private static final int CHUNK_SIZE = 8192;
+    private final Path directory;
+    private final int segmentSize;
+    private Segment active;
+    private int nextSegment = 0;
+    private boolean closed = false;
+
+    /**
+     * @param directory   the directory of the segment files, which is created if necessary
+     * @param segmentSize the size of a segment in bytes. Bodies larger than this get a segment of their own.
+     * @throws IOException if the directory can't be prepared
+     */
+    public BodyStore(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stale)
+                Files.delete(file);
+        }
+    }
+
+    /**
+     * Copies the given data into a segment.
+     *
+     * @return the off-heap body, held once by the caller
+     * @throws UncheckedIOException if no segment could be mapped
+     */
+    public Body write(String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            if (closed)
+                throw new IllegalStateException("Body store " + directory + " has been closed");
+            if (active == null || active.capacity() - active.end < bytes.length)
+                roll(bytes.length);
+            segment = active;
+            offset = segment.end;
+            segment.end += bytes.length;
+            segment.live.incrementAndGet();
+        }
+        // The region is reserved, so the copy doesn't need the lock. The body is published only after the copy.
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(offset);
+        target.put(bytes);
+        return new Body(segment, offset, bytes.length);
+    }
+
+    /**
+     * Records one more holder of the body, typically a mailbox it has been put into.
+     */
+    public void retain(Body body) {
+        body.holders.incrementAndGet();
+    }
+
+    /**
+     * Drops one hold of the body. The space of the body is given up once nobody holds it.
+     */
+    public void release(Body body) {
+        if (body.holders.decrementAndGet() > 0)
+            return;
+        Segment segment = body.segment;
+        if (segment.live.decrementAndGet() == 0) {
+            synchronized (this) {
+                if (segment != active)
+                    delete(segment);
+            }
+        }
+    }
+
+    /**
+     * Deletes all segment files. Bodies that are still referenced stay readable until they are garbage collected.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warning("Error deleting body segments in " + directory);
+        }
+        this.active = null;
+    }
+
+    private void roll(int minSize) {
+        Segment sealed = active;
+        Path file = directory.resolve(nextSegment++ + SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            this.active = new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, minSize)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map body segment " + file, e);
+        }
+        if (sealed != null && sealed.live.get() == 0)
+            delete(sealed);
+    }
+
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.file);
+            logger.fine("Deleted body segment " + segment.file);
+        } catch (IOException e) {
+            logger.warning("Error deleting body segment " + segment.file);
+        }
+    }
+
+    private static class Segment {
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger live = new AtomicInteger();
+        private int end = 0;
+
+        Segment(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    /**
+     * A handle to the data of one message: its segment, offset and length. Holding the handle keeps the segment
+     * mapped, even after its file has been deleted.
+     */
+    public static class Body implements MessageBody {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        private Body(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public String read() {
+            byte[] bytes = new byte[length];
+            segment.buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] chunk = new byte[Math.min(length, CHUNK_SIZE)];
+            for (int written = 0; written < length; written += chunk.length) {
+                int n = Math.min(chunk.length, length - written);
+                segment.buffer.get(offset + written, chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+}
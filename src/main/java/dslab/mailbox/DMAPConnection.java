@@ -3,11 +3,14 @@ package dslab.mailbox;
 import dslab.Email;
 import dslab.Message;
 import dslab.exception.MessageNotFoundException;
+import dslab.util.CommandLine;
+import dslab.util.CommandTable;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
@@ -17,15 +20,24 @@ public class DMAPConnection implements Runnable {
     private PrintWriter out;
     private BufferedReader in;
     private Email currentUser = null;
-    private final ConcurrentHashMap<Email, LinkedList<Message>> storage;
+    private final MailboxStore storage;
     private final ConcurrentHashMap<String, String> userStorage;
 
-    public DMAPConnection(Socket connection, ConcurrentHashMap<Email, LinkedList<Message>> storage, ConcurrentHashMap<String, String> userStorage) {
+    public DMAPConnection(Socket connection, MailboxStore storage, ConcurrentHashMap<String, String> userStorage) {
         this.socket = connection;
         this.storage = storage;
         this.userStorage = userStorage;
     }
 
+    private static final CommandTable<DMAPConnection> COMMANDS = new CommandTable<DMAPConnection>()
+            .on("quit", DMAPConnection::quit)
+            .on("logout", DMAPConnection::logout)
+            .on("list", DMAPConnection::list)
+            .on("delete", DMAPConnection::delete)
+            .on("show", DMAPConnection::show);
+
+    private final CommandLine line = new CommandLine();
+
     @Override
     public void run() {
         logger.finer("Preparing for DMAP communication in " + this.toString());
@@ -37,36 +49,7 @@ public class DMAPConnection implements Runnable {
 
             String userInput;
             while (!Thread.currentThread().isInterrupted() && (userInput = in.readLine()) != null) {
-                if ("quit".equals(userInput)) {
-                    out.println("ok bye");
-                    shutdown();
-                } else if ("logout".equals(userInput)) {
-                    out.println("ok");
-                    currentUser = null;
-                    loginLoop();
-                } else if ("list".equals(userInput)) {
-                    listMessages();
-                } else if ("delete".equals(userInput.split("\\s+")[0])) {
-                    if (userInput.split("\\s+").length == 2) {
-                        try {
-                            deleteMessage(userInput.split("\\s+")[1]);
-                        } catch (MessageNotFoundException e) {
-                            out.println(e.getMessage());
-                        }
-                    } else {
-                        out.println("Please supply a message id to delete!");
-                    }
-                } else if ("show".equals(userInput.split("\\s+")[0])) {
-                    if (userInput.split("\\s+").length == 2) {
-                        try {
-                            showMessage(userInput.split("\\s+")[1]);
-                        } catch (MessageNotFoundException e) {
-                            out.println(e.getMessage());
-                        }
-                    } else {
-                        out.println("Please supply a message id to show!");
-                    }
-                } else {
+                if (!COMMANDS.dispatch(this, line.parse(userInput))) {
                     out.println("error protocol error");
                     shutdown();
                 }
@@ -81,25 +64,71 @@ public class DMAPConnection implements Runnable {
         }
     }
 
+    private void quit(CommandLine line) {
+        out.println("ok bye");
+        shutdown();
+    }
+
+    private void logout(CommandLine line) {
+        out.println("ok");
+        currentUser = null;
+        loginLoop();
+    }
+
+    private void list(CommandLine line) {
+        listMessages();
+    }
+
+    private void delete(CommandLine line) {
+        if (line.tokens() != 2) {
+            out.println("Please supply a message id to delete!");
+            return;
+        }
+        try {
+            deleteMessage(line);
+        } catch (MessageNotFoundException e) {
+            out.println(e.getMessage());
+        }
+    }
+
+    private void show(CommandLine line) throws IOException {
+        if (line.tokens() != 2) {
+            out.println("Please supply a message id to show!");
+            return;
+        }
+        try {
+            showMessage(line);
+        } catch (MessageNotFoundException e) {
+            out.println(e.getMessage());
+        }
+    }
+
     private void loginLoop() {
         String userInput;
 
         try {
             while (!Thread.currentThread().isInterrupted()) {
                 userInput = in.readLine();
-                if ("quit".equals(userInput.split("\\s+")[0])) {
+                if (userInput == null) {
+                    shutdown();
+                    return;
+                }
+                line.parse(userInput);
+                if (line.is("quit")) {
                     out.println("ok bye");
                     shutdown();
-                } else if ("login".equals(userInput.split("\\s+")[0])) {
-                    String[] args = userInput.split("\\s+");
-                    if (args.length != 3)
+                } else if (line.is("login")) {
+                    if (line.tokens() != 3) {
                         out.println("Please specify a username and password to login!");
-                    if (this.userStorage.containsKey(args[1])) {
+                        continue;
+                    }
+                    String username = line.token(1);
+                    if (this.userStorage.containsKey(username)) {
                         // Check if username exists
-                        if (args[2].equals(this.userStorage.get(args[1]))) {
+                        if (line.token(2).equals(this.userStorage.get(username))) {
                             // Check if password matches
-                            for (Email email : this.storage.keySet()) {
-                                if (args[1].equals(email.getUsername())) {
+                            for (Email email : this.storage.users()) {
+                                if (username.equals(email.getUsername())) {
                                     // Set current user if login successful
                                     currentUser = email;
                                     logger.info("User successfully logged in: " + currentUser.toString());
@@ -130,49 +159,65 @@ public class DMAPConnection implements Runnable {
         }
     }
 
-    private void showMessage(String id) throws MessageNotFoundException {
+    /**
+     * Writes the message in the format of {@link Message#toString()}. The data is copied to the socket as it is
+     * stored, so a body kept off the heap is never decoded into a string.
+     */
+    private void showMessage(CommandLine command) throws MessageNotFoundException, IOException {
         int i;
         try {
-            i = Integer.parseInt(id);
+            i = command.number(1);
         } catch (NumberFormatException e) {
             throw new MessageNotFoundException("error unknown message id");
         }
 
-        for (Message m : storage.get(currentUser)) {
-            if (m.getId() == i) {
-                out.println(m);
-                return;
-            }
+        Message m = storage.get(currentUser).get(i);
+        if (m != null) {
+            out.print("from " + m.getFrom() + "\n" +
+                    "to " + m.printTo() + "\n" +
+                    "subject " + m.getSubject() + "\n" +
+                    "data ");
+            out.flush();
+            m.writeData(socket.getOutputStream());
+            out.print("\n");
+            out.println();
+            return;
         }
 
         throw new MessageNotFoundException("error unknown message id");
     }
 
     private void listMessages() {
-        if (storage.get(currentUser).isEmpty()) {
+        List<Message> messages = storage.get(currentUser).list();
+        if (messages.isEmpty()) {
             out.println("You do not have any messages at the moment!");
             return;
         }
 
-        for (Message m : storage.get(currentUser)) {
+        for (Message m : messages) {
             out.println(m.listMessage());
         }
     }
 
-    public void deleteMessage (String id) throws MessageNotFoundException {
+    private void deleteMessage(CommandLine command) throws MessageNotFoundException {
         int i;
         try {
-            i = Integer.parseInt(id);
+            i = command.number(1);
         } catch (NumberFormatException e) {
             throw new MessageNotFoundException("error unknown message id");
         }
 
-        for (Message m : storage.get(currentUser)) {
-            if (m.getId() == i) {
-                storage.get(currentUser).remove(m);
-                out.println("ok");
-                return;
-            }
+        boolean deleted;
+        try {
+            deleted = storage.delete(currentUser, i).join();
+        } catch (CompletionException e) {
+            logger.severe("Failed to delete message: " + e.getCause().getMessage());
+            out.println("error failed to delete message");
+            return;
+        }
+        if (deleted) {
+            out.println("ok");
+            return;
         }
 
         throw new MessageNotFoundException("error unknown message id");
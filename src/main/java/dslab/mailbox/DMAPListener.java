@@ -1,7 +1,5 @@
 package dslab.mailbox;
 
-import dslab.Email;
-import dslab.Message;
 import dslab.transfer.ClientConnection;
 
 import java.io.BufferedReader;
@@ -12,23 +10,22 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class DMAPListener extends Thread {
     private final ServerSocket serverSocket;
     private final Logger logger = Logger.getLogger(DMAPListener.class.getName());
-    private final ConcurrentHashMap<Email, LinkedList<Message>> storage;
+    private final MailboxStore storage;
     private final ConcurrentHashMap<String, String> userStorage;
     private final ArrayList<DMAPConnection> clients = new ArrayList<>();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ExecutorService executorService;
 
-    public DMAPListener(ServerSocket serverSocket, ConcurrentHashMap<Email, LinkedList<Message>> storage, ConcurrentHashMap<String, String> userStorage) {
+    public DMAPListener(ServerSocket serverSocket, MailboxStore storage, ConcurrentHashMap<String, String> userStorage, ExecutorService executorService) {
         this.serverSocket = serverSocket;
+        this.executorService = executorService;
         this.storage = storage;
         this.userStorage = userStorage;
     }
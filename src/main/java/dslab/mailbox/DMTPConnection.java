@@ -3,37 +3,51 @@ package dslab.mailbox;
 import dslab.Email;
 import dslab.Message;
 import dslab.exception.MalformedInputException;
-import dslab.exception.UnknownRecipientException;
+import dslab.util.CommandLine;
+import dslab.util.CommandTable;
+import dslab.util.DMTPBatch;
+import dslab.util.EventLog;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class DMTPConnection implements Runnable {
-    Logger logger = Logger.getLogger(DMTPConnection.class.getName());
+    private static final Logger logger = Logger.getLogger(DMTPConnection.class.getName());
+    private static final EventLog events = EventLog.forClass(DMTPConnection.class);
     private final Socket socket;
     private PrintWriter out;
     private BufferedReader in;
 
     private Message msg = new Message();
+    private boolean batching = false;
 
     private final String domain;
 
-    private final ConcurrentHashMap<Email, LinkedList<Message>> messageStorage;
+    private final MailboxStore messageStorage;
     private final ConcurrentHashMap<String, String> userStorage;
 
-    public DMTPConnection(Socket connection, ConcurrentHashMap<Email, LinkedList<Message>> messageStorage, ConcurrentHashMap<String, String> userStorage, String domain) {
+    public DMTPConnection(Socket connection, MailboxStore messageStorage, ConcurrentHashMap<String, String> userStorage, String domain) {
         this.socket = connection;
         this.messageStorage = messageStorage;
         this.userStorage = userStorage;
         this.domain = domain;
     }
 
+    private static final CommandTable<DMTPConnection> COMMANDS = new CommandTable<DMTPConnection>()
+            .on("quit", DMTPConnection::quit)
+            .on("send", DMTPConnection::send)
+            .on("to", DMTPConnection::to)
+            .on("from", DMTPConnection::from)
+            .on("subject", DMTPConnection::subject)
+            .on("data", DMTPConnection::data)
+            .on(DMTPBatch.COMMAND, DMTPConnection::batch);
+
     @Override
     public void run() {
         logger.finer("Preparing for DMTP communication in " + this.toString());
@@ -56,62 +70,9 @@ public class DMTPConnection implements Runnable {
             }
             out.println("ok");
 
+            CommandLine line = new CommandLine();
             while (!Thread.currentThread().isInterrupted() && (userInput = in.readLine()) != null) {
-                if ("quit".equals(userInput)) {
-                    out.println("ok bye");
-                    shutdown();
-                } else if ("send".equals(userInput)) {
-                    storeMessage();
-                    out.println("ok");
-                } else if ("to".equals(userInput.split("\\s+")[0])) {
-                    msg.setTo(new ArrayList<>());
-                    String[] emailAddresses = userInput.split("\\s+")[1].split(",");
-                    logger.info("Split EMail addresses: " + Arrays.toString(emailAddresses));
-                    int count = 0;
-                    try {
-                        for (String emailAddress : emailAddresses) {
-                            logger.info("Current email address in msg.getTo(): " + emailAddress);
-                            Email add = new Email(emailAddress);
-                            if (this.domain.equals(add.getDomain())) {
-                                logger.info("Address " + emailAddress + " belongs to this domain " + this.domain);
-                                if (!this.userStorage.containsKey(add.getUsername())) {
-                                    logger.info("Our userStorage in domain " + this.domain + " does not contain user " + add.getUsername());
-                                    out.println("error unknown recipient " + add.toString());
-                                } else {
-                                    logger.info("Address " + add.toString() + " belongs to this domain and user exists. Adding address to msg.To() field");
-                                    msg.addTo(add);
-                                    count++;
-                                }
-                            } else {
-                                logger.info("Address " + emailAddress + " does not belong to this domain. Adding anyway...");
-                                msg.addTo(add);
-                                count++;
-                            }
-                        }
-                        if (count != 0)
-                            out.println("ok " + count);
-                    } catch (MalformedInputException e) {
-                        out.println(e.getMessage());
-                    }
-                } else if ("from".equals(userInput.split("\\s+")[0])) {
-                    try {
-                        Email from = new Email(userInput.split("\\s+")[1]);
-                        this.msg.setFrom(from);
-                        out.println("ok");
-                    } catch (MalformedInputException mie) {
-                        out.println(mie.getMessage());
-                    }
-                } else if ("subject".equals(userInput.split("\\s+")[0])) {
-                    String subject = "";
-                    if (userInput.split("\\s+").length > 1)
-                        subject = userInput.split("\\s+", 2)[1];
-                    msg.setSubject(subject);
-                    out.println("ok");
-                } else if ("data".equals(userInput.split("\\s+")[0])) {
-                    String data = userInput.split("\\s+", 2)[1];
-                    msg.setData(data);
-                    out.println("ok");
-                } else {
+                if (!COMMANDS.dispatch(this, line.parse(userInput))) {
                     out.println("error protocol error");
                     shutdown();
                 }
@@ -126,29 +87,131 @@ public class DMTPConnection implements Runnable {
         }
     }
 
-    private synchronized void storeMessage() {
-        logger.info("Storing message " + msg.toString());
-        this.msg.setId(MailboxServer.id++);
-        boolean alreadyPresent;
-        for (Email recipient : this.msg.getTo()) {
-            alreadyPresent = false;
-            logger.info("storeMessage(): checking if msg " + msg.listMessage() + " already exists for recipient " + recipient.toString());
-            if (this.messageStorage.containsKey(recipient)) {
-                // Check if message already exists for user
-                for (Message m : this.messageStorage.get(recipient)) {
-                    if (this.msg.getId().equals(m.getId())) {
-                        logger.info("storeMessage(): msg " + msg.listMessage() + " already exists for recipient " + recipient.toString());
-                        alreadyPresent = true;
-                        break;
-                    }
-                }
-                // Save only if message doesn't already exist
-                if (!alreadyPresent) {
-                    this.messageStorage.get(recipient).add(this.msg);
+    private void quit(CommandLine line) {
+        out.println("ok bye");
+        shutdown();
+    }
+
+    private void send(CommandLine line) {
+        if (storeMessage())
+            out.println("ok");
+        else
+            out.println("error failed to store message");
+    }
+
+    private void to(CommandLine line) {
+        msg.setTo(new ArrayList<>());
+        String[] emailAddresses = line.token(1).split(",");
+        int count = 0;
+        try {
+            for (String emailAddress : emailAddresses) {
+                Email add = Email.of(emailAddress);
+                String error = checkRecipient(add);
+                if (error != null) {
+                    events.info("Our userStorage in domain {} does not contain user {}", this.domain, add.getUsername());
+                    out.println(error);
+                } else {
+                    msg.addTo(add);
+                    count++;
                 }
             }
+            if (count != 0)
+                out.println("ok " + count);
+        } catch (MalformedInputException e) {
+            out.println(e.getMessage());
+        }
+    }
+
+    private void from(CommandLine line) {
+        try {
+            this.msg.setFrom(Email.of(line.token(1)));
+            out.println("ok");
+        } catch (MalformedInputException mie) {
+            out.println(mie.getMessage());
+        }
+    }
+
+    private void subject(CommandLine line) {
+        msg.setSubject(line.rest(1));
+        out.println("ok");
+    }
+
+    private void data(CommandLine line) {
+        msg.setData(line.rest(1));
+        out.println("ok");
+    }
+
+    /**
+     * Handles a {@code batch} command: either negotiates the batch extension or reads a whole block of messages and
+     * stores them with a single call, see {@link DMTPBatch}.
+     */
+    private void batch(CommandLine command) throws IOException {
+        if (command.tokens() == 1) {
+            this.batching = true;
+            out.println(DMTPBatch.ACCEPTED);
+            return;
+        }
+        int size = DMTPBatch.size(command);
+        if (!batching || size < 0) {
+            out.println("error protocol error");
+            shutdown();
+            return;
+        }
+        DMTPBatch batch = new DMTPBatch(size, this::checkRecipient);
+        try {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    shutdown();
+                    return;
+                }
+            } while (!batch.add(line));
+        } catch (MalformedInputException e) {
+            out.println(e.getMessage());
+            shutdown();
+            return;
         }
-        this.msg = new Message();
+        events.info("Storing batch of {} messages", size);
+        try {
+            messageStorage.deliverAll(batch.getMessages()).join();
+        } catch (CompletionException e) {
+            logger.severe("Failed to store batch: " + e.getCause().getMessage());
+            for (int i = 0; i < size; i++)
+                batch.fail(i, "error failed to store message");
+        }
+        out.println(batch.status());
+    }
+
+    /**
+     * @return the error for a recipient of this domain without a mailbox, otherwise null
+     */
+    private String checkRecipient(Email recipient) {
+        if (this.domain.equals(recipient.getDomain()) && !this.userStorage.containsKey(recipient.getUsername()))
+            return "error unknown recipient " + recipient.toString();
+        return null;
+    }
+
+    /**
+     * Stores the current message and waits until it is durable.
+     *
+     * @return false if the message could not be stored
+     */
+    private boolean storeMessage() {
+        try {
+            storeMessage(this.msg, this.messageStorage).join();
+            return true;
+        } catch (CompletionException e) {
+            logger.severe("Failed to store message: " + e.getCause().getMessage());
+            return false;
+        } finally {
+            this.msg = new Message();
+        }
+    }
+
+    static CompletableFuture<Void> storeMessage(Message msg, MailboxStore messageStorage) {
+        events.info("Storing message from {} to {} with subject {}", msg.getFrom(), msg.getTo(), msg.getSubject());
+        return messageStorage.deliver(msg);
     }
 
     public void shutdown() {
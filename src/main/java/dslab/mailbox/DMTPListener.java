@@ -1,18 +1,13 @@
 package dslab.mailbox;
 
-import dslab.Email;
-import dslab.Message;
-
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -20,13 +15,14 @@ public class DMTPListener extends Thread {
     private final ServerSocket serverSocket;
     private final Logger logger = Logger.getLogger(DMTPListener.class.getName());
     private final ArrayList<DMTPConnection> clients = new ArrayList<>();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
-    private final ConcurrentHashMap<Email, LinkedList<Message>> messageStorage;
+    private final ExecutorService executorService;
+    private final MailboxStore messageStorage;
     private final ConcurrentHashMap<String, String> userStorage;
     private final String domain;
 
-    public DMTPListener(ServerSocket serverSocket, ConcurrentHashMap<Email, LinkedList<Message>> storage, ConcurrentHashMap<String, String> userStorage, String domain) {
+    public DMTPListener(ServerSocket serverSocket, MailboxStore storage, ConcurrentHashMap<String, String> userStorage, String domain, ExecutorService executorService) {
         this.serverSocket = serverSocket;
+        this.executorService = executorService;
         this.messageStorage = storage;
         this.userStorage = userStorage;
         this.domain = domain;
@@ -0,0 +1,79 @@
+package dslab.mailbox;
+
+import dslab.Message;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The inbox of a single user. Messages are indexed by id for constant time {@code show} and {@code delete}, and kept
+ * in arrival order for {@code list}.
+ * <p>
+ * DMTP threads add messages while DMAP threads read and delete them, so all access goes through a read-write lock.
+ * {@link #list()} returns a snapshot, which callers can iterate without holding the lock.
+ */
+public class Mailbox {
+    private final LinkedHashMap<Integer, Message> messages = new LinkedHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Adds a message unless a message with the same id is already present.
+     *
+     * @return true if the message was added
+     */
+    public boolean add(Message msg) {
+        lock.writeLock().lock();
+        try {
+            return messages.putIfAbsent(msg.getId(), msg) == null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the message with the given id, or null if there is none
+     */
+    public Message get(int id) {
+        lock.readLock().lock();
+        try {
+            return messages.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the removed message, or null if there was no message with the given id
+     */
+    public Message remove(int id) {
+        lock.writeLock().lock();
+        try {
+            return messages.remove(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of all messages in arrival order
+     */
+    public List<Message> list() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(messages.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
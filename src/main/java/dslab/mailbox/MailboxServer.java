@@ -4,7 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.ServerSocket;
-import java.util.LinkedList;
+import java.nio.file.Paths;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
@@ -13,8 +13,10 @@ import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
 import dslab.Email;
-import dslab.Message;
+import dslab.nio.NioServer;
 import dslab.util.Config;
+import dslab.util.ConnectionExecutors;
+import dslab.util.EventLog;
 
 public class MailboxServer implements IMailboxServer, Runnable {
     private static final Logger logger = Logger.getLogger(MailboxServer.class.getName());
@@ -24,13 +26,25 @@ public class MailboxServer implements IMailboxServer, Runnable {
     private final Shell shell;
     private final Integer dmtpServerPort;
     private final Integer dmapServerPort;
+    private final String dmtpServerMode;
+    private final int dmtpEventLoops;
+    private final String executionMode;
     private DMTPListener dmtpListener;
+    private NioServer dmtpNioServer;
     private DMAPListener dmapListener;
-    private final ConcurrentHashMap<Email, LinkedList<Message>> messageStorage = new ConcurrentHashMap<>();
+    private final MailboxStore messageStorage = new MailboxStore();
+    private final boolean logEnabled;
+    private final String logDir;
+    private final long logSegmentSize;
+    private final int logCompactionSegments;
+    private final long logCompactionInterval;
+    private MessageLog messageLog;
+    private final String bodyStorage;
+    private final String bodyDir;
+    private final int bodySegmentSize;
+    private BodyStore bodyStore;
     private final ConcurrentHashMap<String, String> userStorage = new ConcurrentHashMap<>();
 
-    public static volatile Integer id;
-
     /**
      * Creates a new server instance.
      *
@@ -49,44 +63,96 @@ public class MailboxServer implements IMailboxServer, Runnable {
         }
         // Load Email Addresses into messageStorage
         for (String key : userStorage.keySet()) {
-            Email current = new Email(key, domain);
-            messageStorage.put(current, new LinkedList<>());
+            Email current = Email.of(key, domain);
+            messageStorage.addUser(current);
         }
 
-        id = 0;
-
         this.shell = new Shell(in, out);
         this.shell.register(this);
         this.shell.setPrompt("Mailboxserver> ");
         this.dmtpServerPort = config.getInt("dmtp.tcp.port");
         this.dmapServerPort = config.getInt("dmap.tcp.port");
+        this.dmtpServerMode = config.getString("dmtp.server.mode", "blocking");
+        this.dmtpEventLoops = config.getInt("dmtp.nio.event.loops", 2);
+        this.executionMode = config.getString("execution.mode", ConnectionExecutors.PLATFORM);
+        this.logEnabled = Boolean.parseBoolean(config.getString("log.enabled", "false"));
+        this.logDir = config.getString("log.dir", "data/" + domain);
+        this.logSegmentSize = config.getInt("log.segment.size", 16 * 1024 * 1024);
+        this.logCompactionSegments = config.getInt("log.compaction.segments", 4);
+        this.logCompactionInterval = config.getInt("log.compaction.interval", 60000);
+        this.bodyStorage = config.getString("body.storage", "heap");
+        this.bodyDir = config.getString("body.dir", "data/" + domain + "/bodies");
+        this.bodySegmentSize = config.getInt("body.segment.size", 64 * 1024 * 1024);
     }
 
     @Override
     public void run() {
+        if ("mapped".equals(bodyStorage)) {
+            try {
+                this.bodyStore = new BodyStore(Paths.get(bodyDir), bodySegmentSize);
+                this.messageStorage.attach(bodyStore);
+            } catch (IOException e) {
+                logger.severe("Error preparing body storage in " + bodyDir);
+                e.printStackTrace();
+                shutdown();
+            }
+        }
+        if (logEnabled) {
+            try {
+                // Recover before accepting connections, so clients never see a partially restored inbox
+                this.messageLog = MessageLog.open(Paths.get(logDir), logSegmentSize, logCompactionSegments,
+                        logCompactionInterval, messageStorage);
+                this.messageStorage.attach(messageLog);
+            } catch (IOException e) {
+                logger.severe("Error opening message log in " + logDir);
+                e.printStackTrace();
+                shutdown();
+            }
+        }
         logger.info("Creating DMTP and DMAP serverSockets for MailboxServer + " + this.toString());
         try {
-            this.dmtpServerSocket = new ServerSocket(dmtpServerPort);
+            if ("nio".equals(dmtpServerMode))
+                this.dmtpNioServer = new NioServer("dmtp", dmtpServerPort, dmtpEventLoops,
+                        () -> new MailboxSession(this.messageStorage, this.userStorage, this.domain));
+            else
+                this.dmtpServerSocket = new ServerSocket(dmtpServerPort);
             this.dmapServerSocket = new ServerSocket(dmapServerPort);
         } catch (IOException e) {
             logger.severe("Error creating one of the two server sockets");
             e.printStackTrace();
             shutdown();
         }
-        this.dmtpListener = new DMTPListener(this.dmtpServerSocket, this.messageStorage, this.userStorage, this.domain);
-        this.dmtpListener.start();
-        this.dmapListener = new DMAPListener(this.dmapServerSocket, this.messageStorage, this.userStorage);
+        if (this.dmtpNioServer != null) {
+            this.dmtpNioServer.start();
+        } else {
+            this.dmtpListener = new DMTPListener(this.dmtpServerSocket, this.messageStorage, this.userStorage, this.domain, ConnectionExecutors.create(executionMode));
+            this.dmtpListener.start();
+        }
+        this.dmapListener = new DMAPListener(this.dmapServerSocket, this.messageStorage, this.userStorage, ConnectionExecutors.create(executionMode));
         this.dmapListener.start();
         this.shell.run();
     }
 
+    /**
+     * CLI command to report the next message id, and the allocation rate since the last call.
+     */
+    @Command
+    public void stats() {
+        MessageIdGenerator ids = messageStorage.getIds();
+        this.shell.out().println("next id " + ids.nextId());
+        this.shell.out().println(String.format("ids per second %.2f", ids.sampleRate()));
+    }
+
     @Command
     @Override
     public void shutdown() {
         try {
             if (dmtpServerSocket != null)
                 dmtpServerSocket.close();
-            this.dmtpListener.interrupt();
+            if (dmtpListener != null)
+                this.dmtpListener.interrupt();
+            if (dmtpNioServer != null)
+                this.dmtpNioServer.shutdown();
         } catch (IOException e) {
             logger.severe("Error closing DMTP serverSocket " + dmtpServerSocket.toString());
             e.printStackTrace();
@@ -95,11 +161,17 @@ public class MailboxServer implements IMailboxServer, Runnable {
         try {
             if (dmapServerSocket != null)
                 dmapServerSocket.close();
-            this.dmapListener.interrupt();
+            if (dmapListener != null)
+                this.dmapListener.interrupt();
         } catch (IOException e) {
             logger.severe("Error closing DMTP serverSocket " + dmapServerSocket.toString());
             e.printStackTrace();
         }
+        if (messageLog != null)
+            this.messageLog.close();
+        if (bodyStore != null)
+            this.bodyStore.close();
+        EventLog.flush(1000);
         throw new StopShellException();
     }
 
@@ -0,0 +1,80 @@
+package dslab.mailbox;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.exception.MalformedInputException;
+import dslab.nio.DMTPSession;
+import dslab.nio.LineChannel;
+import dslab.util.DMTPBatch;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Non-blocking counterpart of {@link DMTPConnection}.
+ */
+public class MailboxSession extends DMTPSession {
+    private final MailboxStore messageStorage;
+    private final ConcurrentHashMap<String, String> userStorage;
+    private final String domain;
+
+    public MailboxSession(MailboxStore messageStorage, ConcurrentHashMap<String, String> userStorage, String domain) {
+        this.messageStorage = messageStorage;
+        this.userStorage = userStorage;
+        this.domain = domain;
+    }
+
+    @Override
+    protected void to(String[] addresses, LineChannel channel) {
+        int count = 0;
+        try {
+            for (String emailAddress : addresses) {
+                Email add = Email.of(emailAddress);
+                String error = recipient(add);
+                if (error != null) {
+                    channel.println(error);
+                } else {
+                    msg.addTo(add);
+                    count++;
+                }
+            }
+            if (count != 0)
+                channel.println("ok " + count);
+        } catch (MalformedInputException e) {
+            channel.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Storing may have to wait for the message log, so the channel stops processing further commands until the reply
+     * has been written.
+     */
+    @Override
+    protected void send(LineChannel channel) {
+        channel.suspend();
+        DMTPConnection.storeMessage(this.msg, this.messageStorage).whenComplete((v, e) -> channel.execute(() -> {
+            channel.println(e == null ? "ok" : "error failed to store message");
+            channel.resume();
+        }));
+        this.msg = new Message();
+    }
+
+    @Override
+    protected String recipient(Email recipient) {
+        if (this.domain.equals(recipient.getDomain()) && !this.userStorage.containsKey(recipient.getUsername()))
+            return "error unknown recipient " + recipient.toString();
+        return null;
+    }
+
+    @Override
+    protected void send(DMTPBatch batch, LineChannel channel) {
+        channel.suspend();
+        this.messageStorage.deliverAll(batch.getMessages()).whenComplete((v, e) -> channel.execute(() -> {
+            if (e != null) {
+                for (int i = 0; i < batch.getMessages().size(); i++)
+                    batch.fail(i, "error failed to store message");
+            }
+            channel.println(batch.status());
+            channel.resume();
+        }));
+    }
+}
@@ -0,0 +1,175 @@
+package dslab.mailbox;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.util.EventLog;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * All inboxes of a mailbox server, one {@link Mailbox} per known user. Users are registered once at startup; messages
+ * for addresses without a mailbox are dropped.
+ * <p>
+ * If a {@link MessageLog} is attached, every change is written to the log before it becomes visible, and the returned
+ * futures complete once the change is durable. The change is applied by the log's writer, so that a compaction of the
+ * log never misses a change whose record it replaces.
+ * <p>
+ * If a {@link BodyStore} is attached, the data of stored messages is moved off the heap. The store tracks how many
+ * mailboxes hold a message so that its body is released when the last of them deletes it.
+ */
+public class MailboxStore {
+    private static final Logger logger = Logger.getLogger(MailboxStore.class.getName());
+    private static final EventLog events = EventLog.forClass(MailboxStore.class);
+    private final ConcurrentHashMap<Email, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final MessageIdGenerator ids = new MessageIdGenerator();
+    private volatile MessageLog log;
+    private volatile BodyStore bodies;
+
+    public void addUser(Email user) {
+        mailboxes.putIfAbsent(user, new Mailbox());
+    }
+
+    public Set<Email> users() {
+        return mailboxes.keySet();
+    }
+
+    /**
+     * @return the mailbox of the given user, or null if the user is unknown
+     */
+    public Mailbox get(Email user) {
+        return mailboxes.get(user);
+    }
+
+    public MessageIdGenerator getIds() {
+        return ids;
+    }
+
+    /**
+     * Starts writing all further changes to the given log.
+     */
+    public void attach(MessageLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Keeps the data of all further messages in the given body store. Must be attached before the message log, so
+     * that recovered messages are moved off the heap as well.
+     */
+    public void attach(BodyStore bodies) {
+        this.bodies = bodies;
+    }
+
+    /**
+     * Assigns a fresh id to the message and puts it into the mailbox of every recipient that belongs to this server.
+     *
+     * @return a future that completes once the message is stored
+     */
+    public CompletableFuture<Void> deliver(Message msg) {
+        msg.setId(ids.next());
+        // Moved off the heap before the record is appended, so no disk write sits between appending and applying
+        offload(msg);
+        MessageLog log = this.log;
+        if (log == null) {
+            put(msg, msg.getTo());
+            return CompletableFuture.completedFuture(null);
+        }
+        return log.stored(msg, () -> put(msg, msg.getTo())).whenComplete((v, e) -> {
+            // Drops the hold on the body if the message never made it into the store
+            if (e != null)
+                put(msg, Collections.emptyList());
+        });
+    }
+
+    /**
+     * Stores several messages like {@link #deliver}, but with a single log append for all of them. Either all
+     * messages are stored or none is.
+     *
+     * @return a future that completes once all messages are stored
+     */
+    public CompletableFuture<Void> deliverAll(List<Message> msgs) {
+        for (Message msg : msgs) {
+            msg.setId(ids.next());
+            offload(msg);
+        }
+        MessageLog log = this.log;
+        Runnable apply = () -> {
+            for (Message msg : msgs)
+                put(msg, msg.getTo());
+        };
+        if (log == null) {
+            apply.run();
+            return CompletableFuture.completedFuture(null);
+        }
+        return log.stored(msgs, apply).whenComplete((v, e) -> {
+            if (e != null) {
+                for (Message msg : msgs)
+                    put(msg, Collections.emptyList());
+            }
+        });
+    }
+
+    /**
+     * Removes a message from the mailbox of a user.
+     *
+     * @return a future holding true if the message existed
+     */
+    public CompletableFuture<Boolean> delete(Email user, int id) {
+        Mailbox mailbox = mailboxes.get(user);
+        if (mailbox == null || mailbox.get(id) == null)
+            return CompletableFuture.completedFuture(false);
+        MessageLog log = this.log;
+        if (log == null)
+            return CompletableFuture.completedFuture(removed(mailbox.remove(id)));
+        Message[] removed = new Message[1];
+        return log.deleted(user, id, () -> removed[0] = mailbox.remove(id)).thenApply(v -> removed(removed[0]));
+    }
+
+    /**
+     * Puts a recovered message back into the given mailboxes, keeping its id.
+     */
+    void restore(Message msg, Collection<Email> holders) {
+        ids.advancePast(msg.getId());
+        offload(msg);
+        put(msg, holders);
+    }
+
+    private void put(Message msg, Collection<Email> recipients) {
+        BodyStore.Body body = msg.getBody() instanceof BodyStore.Body ? (BodyStore.Body) msg.getBody() : null;
+        for (Email recipient : recipients) {
+            Mailbox mailbox = mailboxes.get(recipient);
+            if (mailbox == null)
+                continue;
+            // Hold the body before it becomes visible, a delete may follow right after the add
+            if (body != null)
+                bodies.retain(body);
+            if (!mailbox.add(msg)) {
+                events.info("deliver(): msg {} already exists for recipient {}", msg.getId(), recipient);
+                if (body != null)
+                    bodies.release(body);
+            }
+        }
+        // Drop the hold taken when the body was written, which releases a body that no mailbox took
+        if (body != null)
+            bodies.release(body);
+    }
+
+    private boolean removed(Message msg) {
+        if (msg == null)
+            return false;
+        if (msg.getBody() instanceof BodyStore.Body)
+            bodies.release((BodyStore.Body) msg.getBody());
+        return true;
+    }
+
+    private void offload(Message msg) {
+        BodyStore bodies = this.bodies;
+        if (bodies != null && msg.getBody() == null)
+            msg.setBody(bodies.write(msg.getData()));
+    }
+}
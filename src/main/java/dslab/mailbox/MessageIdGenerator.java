@@ -0,0 +1,51 @@
+package dslab.mailbox;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out message ids that are unique across all DMTP connections of a mailbox server. Allocation is a single atomic
+ * increment, so concurrent connections never block each other.
+ */
+public class MessageIdGenerator {
+    private final AtomicInteger next = new AtomicInteger();
+    private long sampledAt = System.nanoTime();
+    private int sampledCount = 0;
+
+    /**
+     * @return a fresh id
+     */
+    public int next() {
+        return next.getAndIncrement();
+    }
+
+    /**
+     * Makes sure that no id up to and including the given one is handed out again, e.g. after ids have been recovered
+     * from a previous run. Runs under the same lock as {@link #sampleRate()}, so the skipped ids never show up as
+     * allocations.
+     */
+    public synchronized void advancePast(int id) {
+        int before = next.getAndAccumulate(id + 1, Math::max);
+        if (id + 1 > before)
+            this.sampledCount += id + 1 - before;
+    }
+
+    /**
+     * @return the id that the next call to {@link #next()} will hand out
+     */
+    public int nextId() {
+        return next.get();
+    }
+
+    /**
+     * Returns the average number of ids allocated per second since the previous call (or since creation).
+     */
+    public synchronized double sampleRate() {
+        long now = System.nanoTime();
+        int count = next.get();
+        double seconds = (now - sampledAt) / 1e9;
+        double rate = seconds > 0 ? (count - sampledCount) / seconds : 0;
+        this.sampledAt = now;
+        this.sampledCount = count;
+        return rate;
+    }
+}
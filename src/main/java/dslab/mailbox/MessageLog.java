@@ -0,0 +1,255 @@
+package dslab.mailbox;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.util.MessageCodec;
+import dslab.util.SegmentedLog;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Write-ahead log of the {@link MailboxStore}. Every stored message and every deletion is appended before it becomes
+ * visible, so the inboxes can be rebuilt after a restart.
+ * <p>
+ * Recovery relies on two properties: ids are never reused, and a message is always stored before it is deleted. The
+ * result of a replay therefore doesn't depend on the order in which records are applied, which lets all log files be
+ * read and decoded in parallel. The surviving messages are restored in id order to keep the inboxes' arrival order.
+ * <p>
+ * Compaction rolls the log and writes a snapshot of the store's current content. The store applies each change in an
+ * action that the log writer runs once the change is durable, before a later roll completes, so the snapshot holds
+ * every change of the segments it replaces. Changes appended after the roll may end up both in the snapshot and in the
+ * newer segments, which is harmless since replaying them is idempotent. Since
+ * the snapshot only holds live messages, it starts with a watermark record of the highest id handed out so far, which
+ * keeps the ids of messages deleted before the snapshot from being reused.
+ */
+public class MessageLog {
+    private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+    private static final byte STORED = 1;
+    private static final byte DELETED = 2;
+    private static final byte WATERMARK = 3;
+    private final SegmentedLog log;
+    private final MailboxStore store;
+    private final int compactionSegments;
+    private final ScheduledExecutorService compactor;
+
+    private MessageLog(SegmentedLog log, MailboxStore store, int compactionSegments, long compactionInterval) {
+        this.log = log;
+        this.store = store;
+        this.compactionSegments = compactionSegments;
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-log-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        this.compactor.scheduleWithFixedDelay(this::compactIfNeeded, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the log in the given directory and restores its content into the store. Users must already be registered
+     * in the store; messages for unknown users are dropped.
+     *
+     * @param directory          the directory of the log files
+     * @param segmentSize        the size in bytes after which a new segment is started
+     * @param compactionSegments the number of segments after which the log is compacted
+     * @param compactionInterval the interval in milliseconds in which the need for compaction is checked
+     * @param store              the store to recover into
+     * @return the opened log
+     * @throws IOException if the log can't be read or opened for writing
+     */
+    public static MessageLog open(Path directory, long segmentSize, int compactionSegments, long compactionInterval,
+                                  MailboxStore store) throws IOException {
+        SegmentedLog log = new SegmentedLog(directory, segmentSize);
+        recover(log.recoveryFiles(), store);
+        return new MessageLog(log, store, compactionSegments, compactionInterval);
+    }
+
+    /**
+     * @param apply puts the message into the store, run by the log writer once the message is durable
+     * @return a future that completes once the message is durable and applied
+     */
+    public CompletableFuture<Void> stored(Message msg, Runnable apply) {
+        return log.append(encodeStored(msg, msg.getTo()), apply);
+    }
+
+    /**
+     * Logs several messages as one unit, so they become durable with a single sync.
+     *
+     * @param apply puts the messages into the store, run by the log writer once they are durable
+     * @return a future that completes once all messages are durable and applied
+     */
+    public CompletableFuture<Void> stored(List<Message> msgs, Runnable apply) {
+        List<byte[]> records = new ArrayList<>(msgs.size());
+        for (Message msg : msgs)
+            records.add(encodeStored(msg, msg.getTo()));
+        return log.appendAll(records, apply);
+    }
+
+    /**
+     * @param apply removes the message from the store, run by the log writer once the deletion is durable
+     * @return a future that completes once the deletion is durable and applied
+     */
+    public CompletableFuture<Void> deleted(Email user, int id, Runnable apply) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(DELETED);
+            out.writeInt(id);
+            MessageCodec.writeEmail(out, user);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return log.append(bytes.toByteArray(), apply);
+    }
+
+    /**
+     * Replaces all closed segments by a snapshot of the store.
+     */
+    public void compact() throws IOException {
+        // Once the roll is done, every change appended before it has been applied to the store
+        long seq = log.roll().join();
+        // Taken before the snapshot, so it covers every message in it
+        int highestId = store.getIds().nextId() - 1;
+        Map<Integer, Held> live = new HashMap<>();
+        for (Email user : store.users()) {
+            for (Message m : store.get(user).list())
+                live.computeIfAbsent(m.getId(), id -> new Held(m)).holders.add(user);
+        }
+        log.writeSnapshot(seq, sink -> {
+            sink.accept(encodeWatermark(highestId));
+            for (Held held : live.values())
+                sink.accept(encodeStored(held.msg, held.holders));
+        });
+        logger.info("Compacted message log up to segment " + seq + " into " + live.size() + " messages");
+    }
+
+    public void close() {
+        compactor.shutdownNow();
+        log.close();
+    }
+
+    private void compactIfNeeded() {
+        if (log.segmentsSinceSnapshot() <= compactionSegments)
+            return;
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            logger.severe("Compacting message log failed: " + e.getMessage());
+        }
+    }
+
+    private static void recover(List<Path> files, MailboxStore store) throws IOException {
+        List<Replay> replays;
+        try {
+            replays = files.parallelStream().map(MessageLog::replay).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        // A message can appear both in a snapshot and in a segment written while the snapshot was taken
+        Map<Integer, Held> held = new HashMap<>();
+        for (Replay replay : replays) {
+            for (Held h : replay.stored.values()) {
+                Held existing = held.putIfAbsent(h.msg.getId(), h);
+                if (existing != null)
+                    existing.holders.addAll(h.holders);
+            }
+        }
+        for (Replay replay : replays) {
+            for (Map.Entry<Integer, List<Email>> deleted : replay.deleted.entrySet()) {
+                Held h = held.get(deleted.getKey());
+                if (h != null)
+                    h.holders.removeAll(deleted.getValue());
+            }
+        }
+        // Ids of fully deleted messages must not be handed out again either, older delete records still refer to them.
+        // Snapshots no longer hold those messages, but their watermark record counts towards maxId.
+        for (Replay replay : replays)
+            store.getIds().advancePast(replay.maxId);
+        List<Held> survivors = new ArrayList<>(held.values());
+        survivors.sort(Comparator.comparingInt(h -> h.msg.getId()));
+        for (Held h : survivors)
+            store.restore(h.msg, h.holders);
+        logger.info("Recovered " + survivors.size() + " messages from " + files.size() + " log files");
+    }
+
+    private static Replay replay(Path file) {
+        Replay replay = new Replay();
+        try {
+            SegmentedLog.read(file, record -> {
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                    byte type = in.readByte();
+                    int id = in.readInt();
+                    replay.maxId = Math.max(replay.maxId, id);
+                    if (type == STORED)
+                        replay.stored.put(id, decodeStored(id, in));
+                    else if (type == DELETED)
+                        replay.deleted.computeIfAbsent(id, k -> new ArrayList<>()).add(MessageCodec.readEmail(in));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return replay;
+    }
+
+    private static byte[] encodeStored(Message msg, Collection<Email> holders) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(STORED);
+            out.writeInt(msg.getId());
+            MessageCodec.writeMessage(out, msg);
+            MessageCodec.writeEmails(out, holders);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeWatermark(int highestId) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(5);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(WATERMARK);
+            out.writeInt(highestId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Held decodeStored(int id, DataInputStream in) throws IOException {
+        Message msg = MessageCodec.readMessage(in);
+        msg.setId(id);
+        Held held = new Held(msg);
+        held.holders.addAll(MessageCodec.readEmails(in));
+        return held;
+    }
+
+    /**
+     * A message together with the users whose inbox still holds it.
+     */
+    private static class Held {
+        private final Message msg;
+        private final LinkedHashSet<Email> holders = new LinkedHashSet<>();
+
+        Held(Message msg) {
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * The decoded content of a single log file.
+     */
+    private static class Replay {
+        private final Map<Integer, Held> stored = new HashMap<>();
+        private final Map<Integer, List<Email>> deleted = new HashMap<>();
+        private int maxId = -1;
+    }
+}
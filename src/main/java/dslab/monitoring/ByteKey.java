@@ -0,0 +1,84 @@
+package dslab.monitoring;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A map key made of a slice of bytes, so that counters can be looked up straight from a received datagram.
+ * <p>
+ * A receiver keeps one mutable key per field and points it at the bytes of each record with {@link #set}; only when
+ * the key is not in the map yet, an immutable {@link #copy()} is stored. Both kinds of keys compare by content and
+ * share the same hash, so looking up a known key allocates nothing.
+ */
+final class ByteKey {
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private int hash;
+
+    ByteKey() {
+    }
+
+    private ByteKey(byte[] bytes, int hash) {
+        this.bytes = bytes;
+        this.length = bytes.length;
+        this.hash = hash;
+    }
+
+    /**
+     * Points this key at the given bytes. The key must not be stored while it refers to a reused buffer.
+     */
+    ByteKey set(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        int h = 1;
+        for (int i = offset; i < offset + length; i++)
+            h = 31 * h + bytes[i];
+        this.hash = h;
+        return this;
+    }
+
+    /**
+     * @return a key with the same content that owns its bytes
+     */
+    ByteKey copy() {
+        return new ByteKey(Arrays.copyOfRange(bytes, offset, offset + length), hash);
+    }
+
+    /**
+     * @return a well mixed 64 bit hash of the content, independent of {@link #hashCode()}
+     */
+    long hash64() {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ByteKey)) return false;
+        ByteKey other = (ByteKey) o;
+        return hash == other.hash && Arrays.equals(bytes, offset, offset + length,
+                other.bytes, other.offset, other.offset + other.length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+}
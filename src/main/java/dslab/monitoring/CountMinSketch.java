@@ -0,0 +1,66 @@
+package dslab.monitoring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate counts for an unbounded set of keys in fixed memory.
+ * <p>
+ * The sketch is a {@code depth x width} matrix of counters. A key increments one counter per row, chosen by a hash of
+ * its own for every row, and its estimate is the smallest of these counters. Collisions only ever add to a counter,
+ * so an estimate is never too low; with {@code width = ceil(e / epsilon)} and {@code depth = ceil(ln(1 / delta))} it
+ * exceeds the true count by more than {@code epsilon} times the total of all counts with a probability of at most
+ * {@code delta}. Counters are updated with atomic increments, so concurrent receivers don't need a lock.
+ */
+final class CountMinSketch {
+    private final AtomicLongArray counters;
+    private final int width;
+    private final int depth;
+
+    /**
+     * @param epsilon the error bound relative to the total of all counts
+     * @param delta   the probability of exceeding the error bound
+     */
+    CountMinSketch(double epsilon, double delta) {
+        this.width = (int) Math.ceil(Math.E / epsilon);
+        this.depth = (int) Math.ceil(Math.log(1 / delta));
+        this.counters = new AtomicLongArray(width * depth);
+    }
+
+    /**
+     * Counts the key once.
+     *
+     * @return the estimate of the key including this increment
+     */
+    long increment(ByteKey key) {
+        long hash = key.hash64();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+            estimate = Math.min(estimate, counters.incrementAndGet(index(hash, row)));
+        return estimate;
+    }
+
+    long estimate(ByteKey key) {
+        long hash = key.hash64();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+            estimate = Math.min(estimate, counters.get(index(hash, row)));
+        return estimate;
+    }
+
+    /**
+     * @return the number of counters, which determines the memory used
+     */
+    int size() {
+        return counters.length();
+    }
+
+    /**
+     * Derives the hash of each row from two halves of one 64 bit hash (Kirsch-Mitzenmacher), which is as good as
+     * independent hash functions for this purpose.
+     */
+    private int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * width + Math.floorMod(h1 + row * h2, width);
+    }
+}
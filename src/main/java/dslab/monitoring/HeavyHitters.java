@@ -0,0 +1,79 @@
+package dslab.monitoring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The approximately {@code k} most frequent keys of a stream, in fixed memory.
+ * <p>
+ * Every key is counted in a {@link CountMinSketch}; only the current top {@code k} keys are kept themselves. A key
+ * that isn't one of them is admitted once its estimate exceeds the smallest estimate among them, which then makes
+ * room. Known members and keys below that threshold are handled without a lock, so the lock is only taken when the
+ * membership changes.
+ */
+final class HeavyHitters {
+    private final CountMinSketch sketch;
+    private final int k;
+    private final ConcurrentHashMap<ByteKey, Boolean> members = new ConcurrentHashMap<>();
+    private volatile long threshold = 0;
+
+    HeavyHitters(int k, double epsilon, double delta) {
+        this.k = k;
+        this.sketch = new CountMinSketch(epsilon, delta);
+    }
+
+    /**
+     * Counts one occurrence of the key. The key may point into a reused buffer, it is copied if it becomes a member.
+     */
+    void record(ByteKey key) {
+        long estimate = sketch.increment(key);
+        if (estimate > threshold && !members.containsKey(key))
+            admit(key, estimate);
+    }
+
+    boolean contains(ByteKey key) {
+        return members.containsKey(key);
+    }
+
+    /**
+     * @return the members with their estimated counts, most frequent first
+     */
+    List<Map.Entry<String, Long>> top() {
+        List<Map.Entry<String, Long>> top = new ArrayList<>(members.size());
+        for (ByteKey key : members.keySet())
+            top.add(Map.entry(key.toString(), sketch.estimate(key)));
+        top.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return top;
+    }
+
+    private synchronized void admit(ByteKey key, long estimate) {
+        if (members.containsKey(key) || estimate <= threshold)
+            return;
+        if (members.size() >= k) {
+            ByteKey smallest = null;
+            long min = Long.MAX_VALUE;
+            for (ByteKey member : members.keySet()) {
+                long e = sketch.estimate(member);
+                if (e < min) {
+                    min = e;
+                    smallest = member;
+                }
+            }
+            // Estimates of members keep growing, the threshold may be outdated
+            if (estimate <= min) {
+                threshold = min;
+                return;
+            }
+            members.remove(smallest);
+        }
+        members.put(key.copy(), Boolean.TRUE);
+        if (members.size() >= k) {
+            long min = Long.MAX_VALUE;
+            for (ByteKey member : members.keySet())
+                min = Math.min(min, sketch.estimate(member));
+            threshold = min;
+        }
+    }
+}
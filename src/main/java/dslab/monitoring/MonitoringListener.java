@@ -1,64 +1,100 @@
 package dslab.monitoring;
 
+import dslab.util.EventLog;
+
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
+/**
+ * One of the receiver threads of the monitoring server. Each datagram may carry several {@code <server> <address>}
+ * records, one per line. The records are parsed in place in the receive buffer and counted through reusable
+ * {@link ByteKey}s, so a record for known keys is processed without any allocation.
+ */
 public class MonitoringListener extends Thread {
     private static final Logger logger = Logger.getLogger(MonitoringListener.class.getName());
-    private final DatagramSocket serverSocket;
-    private final ConcurrentHashMap<String, Integer> addresses;
-    private final ConcurrentHashMap<String, Integer> servers;
+    private static final EventLog events = EventLog.forClass(MonitoringListener.class);
+    private final DatagramChannel channel;
+    private final Statistics statistics;
+    // Large enough for any UDP payload, so that batched datagrams are never truncated
+    private final ByteBuffer buffer = ByteBuffer.allocate(65507);
+    private final ByteKey server = new ByteKey();
+    private final ByteKey address = new ByteKey();
 
-    public MonitoringListener(DatagramSocket serverSocket, ConcurrentHashMap<String, Integer> addresses, ConcurrentHashMap<String, Integer> servers) {
-        this.serverSocket = serverSocket;
-        this.addresses = addresses;
-        this.servers = servers;
+    public MonitoringListener(DatagramChannel channel, Statistics statistics, String name) {
+        super(name);
+        this.channel = channel;
+        this.statistics = statistics;
     }
 
     @Override
     public void run() {
-        byte[] recvBuffer = new byte[1024];
         while (!Thread.currentThread().isInterrupted()) {
-            logger.finer("Waiting for request on UDP serverSocket " + serverSocket.toString());
             try {
-                DatagramPacket packet = new DatagramPacket(recvBuffer, recvBuffer.length);
-                serverSocket.receive(packet);
-                logger.fine("Processing incoming socket " + serverSocket.toString());
-                String receivedData = new String(packet.getData(), StandardCharsets.UTF_8).trim();
-                String server = receivedData.split("\\s+")[0];
-                String address = receivedData.split("\\s+")[1];
-                logger.info("Incoming packet contains server: " + server);
-                logger.info("Incoming packet contains address: " + address);
-                // Add/Update num of packets sent by server
-                if (!this.servers.containsKey(server))
-                    this.servers.put(server, 1);
-                else
-                    this.servers.put(server, this.servers.get(server) + 1);
-                // Add/Update num of packets sent for address
-                if (!this.addresses.containsKey(address))
-                    this.addresses.put(address, 1);
-                else
-                    this.addresses.put(address, this.addresses.get(address) + 1);
-            } catch (InterruptedIOException | SocketException e) {
-                logger.finer("Received interrupt. Exiting " + this.toString());
-                this.shutdown();
+                buffer.clear();
+                channel.receive(buffer);
+                parse(buffer.array(), buffer.position());
+            } catch (ClosedChannelException e) {
+                logger.finer("Channel closed. Exiting " + this.toString());
+                break;
             } catch (IOException e) {
-                logger.severe("Error starting serverSocket " + serverSocket.toString());
-                e.printStackTrace();
-                this.shutdown();
+                logger.severe("Error receiving on monitoring channel: " + e.getMessage());
+                break;
             }
         }
     }
 
+    /**
+     * Counts every record in {@code bytes[0, length)}.
+     */
+    void parse(byte[] bytes, int length) {
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && bytes[end] != '\n')
+                end++;
+            record(bytes, start, end);
+            start = end + 1;
+        }
+    }
+
+    private void record(byte[] bytes, int from, int to) {
+        while (from < to && isSpace(bytes[from]))
+            from++;
+        while (to > from && isSpace(bytes[to - 1]))
+            to--;
+        if (from == to)
+            return;
+        int split = from;
+        while (split < to && !isSpace(bytes[split]))
+            split++;
+        int second = split;
+        while (second < to && isSpace(bytes[second]))
+            second++;
+        int rest = second;
+        while (rest < to && !isSpace(bytes[rest]))
+            rest++;
+        if (split == to || rest != to) {
+            events.warning("Ignoring malformed monitoring record: {}", new String(bytes, from, to - from, StandardCharsets.UTF_8));
+            return;
+        }
+        statistics.record(server.set(bytes, from, split - from), address.set(bytes, second, to - second));
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
     public void shutdown() {
         logger.finer("Shutting down MonitoringListener " + this.toString());
-        this.serverSocket.close();
         this.interrupt();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            logger.warning("Error closing monitoring channel");
+        }
     }
 }
@@ -3,13 +3,16 @@ package dslab.monitoring;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import at.ac.tuwien.dsg.orvell.Shell;
@@ -17,15 +20,23 @@ import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
 import dslab.util.Config;
+import dslab.util.EventLog;
 
+/**
+ * Counts the messages reported by the transfer servers.
+ * <p>
+ * Datagrams are received by several {@link MonitoringListener} threads. Where the platform supports
+ * {@code SO_REUSEPORT}, each of them has its own socket bound to the monitoring port and the kernel spreads the
+ * datagrams across them; otherwise they share a single socket and only parse in parallel.
+ */
 public class MonitoringServer implements IMonitoringServer {
     private static final Logger logger = Logger.getLogger(MonitoringServer.class.getName());
-    private DatagramSocket serverSocket;
     private final Shell shell;
     private final Integer serverPort;
-    private MonitoringListener monitoringListener;
-    private final ConcurrentHashMap<String, Integer> addresses = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Integer> servers = new ConcurrentHashMap<>();
+    private final int receivers;
+    private final List<MonitoringListener> listeners = new ArrayList<>();
+    private final Statistics statistics;
+    private final ScheduledExecutorService evictor;
 
     /**
      * Creates a new server instance.
@@ -40,45 +51,147 @@ public class MonitoringServer implements IMonitoringServer {
         this.shell.register(this);
         this.shell.setPrompt("MonitoringServer> ");
         this.serverPort = config.getInt("udp.port");
+        this.receivers = config.getInt("udp.receivers", Runtime.getRuntime().availableProcessors());
+        int bucketWidth = config.getInt("stats.bucket.width", 10000);
+        int buckets = config.getInt("stats.buckets", 360);
+        if ("sketch".equals(config.getString("stats.addresses.mode", "exact"))) {
+            this.statistics = new Statistics(bucketWidth, buckets, config.getInt("stats.sketch.top", 100),
+                    Double.parseDouble(config.getString("stats.sketch.epsilon", "0.001")),
+                    Double.parseDouble(config.getString("stats.sketch.delta", "0.01")));
+        } else {
+            this.statistics = new Statistics(bucketWidth, buckets);
+        }
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "statistics-evictor");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
     public void run() {
-        logger.info("Creating UDP serverSocket for " + this.toString());
+        logger.info("Creating UDP channels for " + this.toString());
         try {
-            this.serverSocket = new DatagramSocket(serverPort);
+            DatagramChannel shared = null;
+            for (int i = 0; i < receivers; i++) {
+                if (shared != null) {
+                    listeners.add(new MonitoringListener(shared, statistics, "monitoring-receiver-" + i));
+                    continue;
+                }
+                DatagramChannel channel = DatagramChannel.open();
+                // Registered before binding, so that shutdown closes it if binding fails
+                listeners.add(new MonitoringListener(channel, statistics, "monitoring-receiver-" + i));
+                boolean reusePort = receivers > 1 && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+                if (reusePort)
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(serverPort));
+                if (!reusePort)
+                    shared = channel;
+            }
         } catch (IOException e) {
-            logger.severe("Error creating serverSocket " + serverSocket.toString());
+            logger.severe("Error creating UDP channel on port " + serverPort);
             e.printStackTrace();
             shutdown();
         }
-        this.monitoringListener = new MonitoringListener(serverSocket, addresses, servers);
-        this.monitoringListener.start();
+        for (MonitoringListener listener : listeners)
+            listener.start();
+        long evictionInterval = Math.max(statistics.horizon() / 10, 1);
+        this.evictor.scheduleWithFixedDelay(statistics::evictIdle, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
         this.shell.run();
     }
 
     @Command
     @Override
     public void addresses() {
-        for (String address : addresses.keySet()) {
-            this.shell.out().println(address + " " + addresses.get(address));
+        for (Map.Entry<String, Long> address : statistics.addresses().entrySet()) {
+            this.shell.out().println(address.getKey() + " " + address.getValue());
         }
     }
 
     @Command
     @Override
     public void servers() {
-        for (String server : servers.keySet()) {
-            this.shell.out().println(server + " " + servers.get(server));
+        for (Map.Entry<String, Long> server : statistics.servers().entrySet()) {
+            this.shell.out().println(server.getKey() + " " + server.getValue());
+        }
+    }
+
+    /**
+     * CLI command listing the senders with the most messages within a window, e.g. {@code top 10 5m}.
+     */
+    @Command
+    public void top(String limit, String window) {
+        long millis = parseWindow(window);
+        int n;
+        try {
+            n = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            n = 0;
+        }
+        if (n <= 0 || millis <= 0) {
+            this.shell.out().println("error usage: top <count> <window>, e.g. top 10 5m");
+            return;
+        }
+        for (Map.Entry<String, Long> address : statistics.topAddresses(n, millis)) {
+            this.shell.out().println(address.getKey() + " " + address.getValue());
+        }
+    }
+
+    /**
+     * CLI command printing the messages and messages per second of every transfer server within a window, e.g.
+     * {@code throughput 1m}.
+     */
+    @Command
+    public void throughput(String window) {
+        long millis = parseWindow(window);
+        if (millis <= 0) {
+            this.shell.out().println("error usage: throughput <window>, e.g. throughput 1m");
+            return;
+        }
+        // Windows beyond the horizon are answered with what is left, so the rate refers to that span
+        long span = Math.min(millis, statistics.horizon());
+        for (Map.Entry<String, Long> server : statistics.servers(millis).entrySet()) {
+            double rate = server.getValue() * 1000.0 / span;
+            this.shell.out().println(server.getKey() + " " + server.getValue() + " " + String.format(Locale.ROOT, "%.2f/s", rate));
+        }
+    }
+
+    /**
+     * Parses a window like {@code 30s}, {@code 5m} or {@code 1h}.
+     *
+     * @return the window in milliseconds, or -1 if it is malformed
+     */
+    private static long parseWindow(String window) {
+        if (window == null || window.length() < 2)
+            return -1;
+        long unit;
+        switch (window.charAt(window.length() - 1)) {
+            case 's':
+                unit = 1000;
+                break;
+            case 'm':
+                unit = 60 * 1000;
+                break;
+            case 'h':
+                unit = 60 * 60 * 1000;
+                break;
+            default:
+                return -1;
+        }
+        try {
+            return Long.parseLong(window.substring(0, window.length() - 1)) * unit;
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
     @Command
     @Override
     public void shutdown() {
-        if (serverSocket != null)
-            serverSocket.close();
-        this.monitoringListener.interrupt();
+        evictor.shutdownNow();
+        for (MonitoringListener listener : listeners)
+            listener.shutdown();
+        EventLog.flush(1000);
         throw new StopShellException();
     }
 
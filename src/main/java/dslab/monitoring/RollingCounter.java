@@ -0,0 +1,59 @@
+package dslab.monitoring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events in fixed time buckets over a rolling horizon, using a ring of {@code buckets} slots.
+ * <p>
+ * Each slot packs the index of the time bucket it currently counts (low 32 bits of it) and the count into a single
+ * long, so an increment is one CAS and a slot left over from an earlier round of the ring is recognized and reset by
+ * the first increment that needs it. Memory per counter is fixed, whatever the uptime.
+ */
+final class RollingCounter {
+    private static final long MASK = 0xFFFFFFFFL;
+    private final AtomicLongArray slots;
+    private final long bucketWidth;
+
+    /**
+     * @param bucketWidth the width of a bucket in milliseconds
+     * @param buckets     the number of buckets, which together span the horizon
+     */
+    RollingCounter(long bucketWidth, int buckets) {
+        this.bucketWidth = bucketWidth;
+        this.slots = new AtomicLongArray(buckets);
+    }
+
+    void increment(long now) {
+        long bucket = now / bucketWidth;
+        int slot = (int) (bucket % slots.length());
+        long stamp = bucket & MASK;
+        while (true) {
+            long value = slots.get(slot);
+            long next = (value >>> 32) == stamp ? value + 1 : stamp << 32 | 1;
+            if (slots.compareAndSet(slot, value, next))
+                return;
+        }
+    }
+
+    /**
+     * @param buckets the number of most recent buckets to sum up, including the current one
+     * @return the number of events in those buckets
+     */
+    long sum(long now, int buckets) {
+        long current = now / bucketWidth;
+        long sum = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            long value = slots.get(i);
+            if (((current - (value >>> 32)) & MASK) < buckets)
+                sum += value & MASK;
+        }
+        return sum;
+    }
+
+    /**
+     * @return true if no event happened within the horizon
+     */
+    boolean isIdle(long now) {
+        return sum(now, slots.length()) == 0;
+    }
+}
@@ -0,0 +1,207 @@
+package dslab.monitoring;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The number of delivered messages per transfer server and per sender address, updated concurrently by all receiver
+ * threads.
+ * <p>
+ * Each counter is a {@link LongAdder}, so receivers that hit the same counter don't contend on a single CAS, and an
+ * update never boxes a value. Counters are created once per key and never removed, so the only map write per key is
+ * its first {@code computeIfAbsent}.
+ * <p>
+ * Next to the totals, every key has a {@link RollingCounter} for the recent past, which answers how many messages
+ * arrived within a window of up to {@code buckets * bucketWidth}. Rolling counters of keys without any message in
+ * that horizon are dropped by {@link #evictIdle()}, so their memory follows the number of recently active keys
+ * instead of growing with uptime. A message that races with the eviction of its key may be missing from the windowed
+ * counts, but never from the totals.
+ * <p>
+ * With millions of distinct senders, even the totals per address don't fit into memory. In sketch mode, addresses
+ * are therefore only tracked by {@link HeavyHitters}: {@link #addresses()} reports approximate counts of the busiest
+ * senders, and rolling counters are only kept for those, so their windowed counts start when they became one.
+ */
+public class Statistics {
+    private final ConcurrentHashMap<ByteKey, LongAdder> servers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteKey, LongAdder> addresses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteKey, RollingCounter> recentServers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ByteKey, RollingCounter> recentAddresses = new ConcurrentHashMap<>();
+    private final long bucketWidth;
+    private final int buckets;
+    private final HeavyHitters heavyHitters;
+
+    /**
+     * Creates statistics that count every address exactly.
+     *
+     * @param bucketWidth the resolution of the windowed counts in milliseconds
+     * @param buckets     the number of buckets kept per key, which limits the largest window
+     */
+    public Statistics(long bucketWidth, int buckets) {
+        this.bucketWidth = bucketWidth;
+        this.buckets = buckets;
+        this.heavyHitters = null;
+    }
+
+    /**
+     * Creates statistics that only track the busiest addresses, in fixed memory.
+     *
+     * @param bucketWidth the resolution of the windowed counts in milliseconds
+     * @param buckets     the number of buckets kept per key, which limits the largest window
+     * @param top         the number of addresses reported
+     * @param epsilon     the error bound of the counts, relative to the total number of messages
+     * @param delta       the probability of a count exceeding the error bound
+     */
+    public Statistics(long bucketWidth, int buckets, int top, double epsilon, double delta) {
+        this.bucketWidth = bucketWidth;
+        this.buckets = buckets;
+        this.heavyHitters = new HeavyHitters(top, epsilon, delta);
+    }
+
+    /**
+     * Counts one delivered message. The keys may point into a reused buffer, they are copied if they have to be
+     * stored.
+     */
+    void record(ByteKey server, ByteKey address) {
+        record(server, address, System.currentTimeMillis());
+    }
+
+    void record(ByteKey server, ByteKey address, long now) {
+        counter(servers, server).increment();
+        recent(recentServers, server).increment(now);
+        if (heavyHitters == null) {
+            counter(addresses, address).increment();
+            recent(recentAddresses, address).increment(now);
+        } else {
+            heavyHitters.record(address);
+            if (heavyHitters.contains(address))
+                recent(recentAddresses, address).increment(now);
+        }
+    }
+
+    /**
+     * @return the number of messages per transfer server within the given window, ordered by server
+     */
+    public Map<String, Long> servers(long window) {
+        return servers(window, System.currentTimeMillis());
+    }
+
+    Map<String, Long> servers(long window, long now) {
+        int n = bucketsOf(window);
+        Map<String, Long> counts = new TreeMap<>();
+        recentServers.forEach((key, counter) -> {
+            long sum = counter.sum(now, n);
+            if (sum > 0)
+                counts.put(key.toString(), sum);
+        });
+        return counts;
+    }
+
+    /**
+     * @return the sender addresses with the most messages within the given window, at most {@code limit} of them,
+     * ordered by count descending
+     */
+    public List<Map.Entry<String, Long>> topAddresses(int limit, long window) {
+        return topAddresses(limit, window, System.currentTimeMillis());
+    }
+
+    List<Map.Entry<String, Long>> topAddresses(int limit, long window, long now) {
+        int n = bucketsOf(window);
+        Comparator<Map.Entry<ByteKey, Long>> byCount = Map.Entry.comparingByValue();
+        // A min-heap of the best entries so far, so that a query doesn't sort all keys
+        PriorityQueue<Map.Entry<ByteKey, Long>> top = new PriorityQueue<>(limit + 1, byCount);
+        recentAddresses.forEach((key, counter) -> {
+            long sum = counter.sum(now, n);
+            if (sum == 0)
+                return;
+            top.add(Map.entry(key, sum));
+            if (top.size() > limit)
+                top.poll();
+        });
+        List<Map.Entry<String, Long>> result = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            Map.Entry<ByteKey, Long> entry = top.poll();
+            result.add(Map.entry(entry.getKey().toString(), entry.getValue()));
+        }
+        result.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return result;
+    }
+
+    /**
+     * @return the largest window in milliseconds the windowed counts can answer
+     */
+    public long horizon() {
+        return bucketWidth * buckets;
+    }
+
+    /**
+     * Drops the rolling counters of keys that had no message within the horizon.
+     */
+    public void evictIdle() {
+        evictIdle(System.currentTimeMillis());
+    }
+
+    void evictIdle(long now) {
+        recentServers.values().removeIf(counter -> counter.isIdle(now));
+        recentAddresses.values().removeIf(counter -> counter.isIdle(now));
+        if (heavyHitters != null)
+            recentAddresses.keySet().removeIf(key -> !heavyHitters.contains(key));
+    }
+
+    int tracked() {
+        return recentServers.size() + recentAddresses.size();
+    }
+
+    /**
+     * @return a snapshot of the counts per transfer server, ordered by server
+     */
+    public Map<String, Long> servers() {
+        return snapshot(servers);
+    }
+
+    /**
+     * @return a snapshot of the counts per sender address, ordered by address. In sketch mode only the busiest
+     * addresses with approximate counts, ordered by count descending.
+     */
+    public Map<String, Long> addresses() {
+        if (heavyHitters == null)
+            return snapshot(addresses);
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> address : heavyHitters.top())
+            top.put(address.getKey(), address.getValue());
+        return top;
+    }
+
+    private static LongAdder counter(ConcurrentHashMap<ByteKey, LongAdder> counters, ByteKey key) {
+        LongAdder counter = counters.get(key);
+        if (counter != null)
+            return counter;
+        return counters.computeIfAbsent(key.copy(), k -> new LongAdder());
+    }
+
+    private RollingCounter recent(ConcurrentHashMap<ByteKey, RollingCounter> counters, ByteKey key) {
+        RollingCounter counter = counters.get(key);
+        if (counter != null)
+            return counter;
+        return counters.computeIfAbsent(key.copy(), k -> new RollingCounter(bucketWidth, buckets));
+    }
+
+    private int bucketsOf(long window) {
+        return (int) Math.max(1, Math.min(buckets, (window + bucketWidth - 1) / bucketWidth));
+    }
+
+    /**
+     * Reads all counters into a detached map, so that printing it isn't affected by records arriving meanwhile.
+     */
+    private static Map<String, Long> snapshot(ConcurrentHashMap<ByteKey, LongAdder> counters) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((key, counter) -> snapshot.put(key.toString(), counter.sum()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,175 @@
+package dslab.nio;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.exception.MalformedInputException;
+import dslab.util.CommandLine;
+import dslab.util.CommandTable;
+import dslab.util.DMTPBatch;
+
+import java.io.IOException;
+
+/**
+ * State machine version of the server side of DMTP, for use with the {@link NioServer}. It handles the commands that
+ * behave the same on transfer and mailbox servers; subclasses decide how recipients are accepted and what happens on
+ * {@code send}.
+ */
+public abstract class DMTPSession implements LineProtocol {
+
+    private enum State {
+        AWAITING_BEGIN,
+        OPEN,
+        BATCH,
+        CLOSED
+    }
+
+    private static final CommandTable<DMTPSession> COMMANDS = new CommandTable<DMTPSession>()
+            .on("quit", DMTPSession::quit)
+            .on("send", DMTPSession::send)
+            .on("to", DMTPSession::to)
+            .on("from", DMTPSession::from)
+            .on("subject", DMTPSession::subject)
+            .on("data", DMTPSession::data)
+            .on(DMTPBatch.COMMAND, DMTPSession::startBatch);
+
+    private final CommandLine line = new CommandLine();
+    private LineChannel channel;
+    private State state = State.AWAITING_BEGIN;
+    protected Message msg = new Message();
+    private boolean batching = false;
+    private DMTPBatch batch;
+
+    @Override
+    public void onOpen(LineChannel channel) {
+        channel.println("ok DMTP");
+    }
+
+    @Override
+    public void onLine(String line, LineChannel channel) {
+        switch (state) {
+            case AWAITING_BEGIN:
+                if ("begin".equals(line)) {
+                    state = State.OPEN;
+                    channel.println("ok");
+                } else {
+                    protocolError(channel);
+                }
+                break;
+            case OPEN:
+                onCommand(line, channel);
+                break;
+            case BATCH:
+                onBatchLine(line, channel);
+                break;
+            case CLOSED:
+            default:
+                break;
+        }
+    }
+
+    private void onCommand(String line, LineChannel channel) {
+        this.channel = channel;
+        try {
+            if (!COMMANDS.dispatch(this, this.line.parse(line)))
+                protocolError(channel);
+        } catch (IOException e) {
+            // Replies are only queued on the channel, none of the handlers does I/O itself
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void quit(CommandLine line) {
+        channel.println("ok bye");
+        close(channel);
+    }
+
+    private void send(CommandLine line) {
+        send(channel);
+    }
+
+    private void to(CommandLine line) {
+        msg.getTo().clear();
+        to(line.tokens() < 2 ? new String[0] : line.token(1).split(","), channel);
+    }
+
+    private void from(CommandLine line) {
+        try {
+            msg.setFrom(Email.of(line.token(1)));
+            channel.println("ok");
+        } catch (MalformedInputException e) {
+            channel.println(e.getMessage());
+        }
+    }
+
+    private void subject(CommandLine line) {
+        msg.setSubject(line.rest(1));
+        channel.println("ok");
+    }
+
+    private void data(CommandLine line) {
+        msg.setData(line.rest(1));
+        channel.println("ok");
+    }
+
+    private void startBatch(CommandLine line) {
+        if (line.tokens() == 1) {
+            batching = true;
+            channel.println(DMTPBatch.ACCEPTED);
+            return;
+        }
+        int size = DMTPBatch.size(line);
+        if (!batching || size < 0) {
+            protocolError(channel);
+            return;
+        }
+        batch = new DMTPBatch(size, this::recipient);
+        state = State.BATCH;
+    }
+
+    private void onBatchLine(String line, LineChannel channel) {
+        try {
+            if (!batch.add(line))
+                return;
+        } catch (MalformedInputException e) {
+            protocolError(channel);
+            return;
+        }
+        DMTPBatch complete = batch;
+        batch = null;
+        state = State.OPEN;
+        send(complete, channel);
+    }
+
+    /**
+     * Handles a {@code to} command. The recipient list of {@link #msg} has already been cleared.
+     */
+    protected abstract void to(String[] addresses, LineChannel channel);
+
+    /**
+     * Handles a {@code send} command and writes the reply. Implementations must not block.
+     */
+    protected abstract void send(LineChannel channel);
+
+    /**
+     * Checks a recipient of a batched message.
+     *
+     * @return the error to report for the recipient, or null if it is accepted
+     */
+    protected abstract String recipient(Email recipient);
+
+    /**
+     * Stores a completely read block of the batch extension and writes its status line. Implementations must not
+     * block.
+     */
+    protected abstract void send(DMTPBatch batch, LineChannel channel);
+
+    private void protocolError(LineChannel channel) {
+        channel.println("error protocol error");
+        close(channel);
+    }
+
+    private void close(LineChannel channel) {
+        state = State.CLOSED;
+        channel.close();
+    }
+}
@@ -0,0 +1,126 @@
+package dslab.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Serves any number of connections from a single thread using a {@link Selector}.
+ */
+public class EventLoop extends Thread {
+    private static final Logger logger = Logger.getLogger(EventLoop.class.getName());
+    private final Selector selector;
+    private final Supplier<LineProtocol> protocolFactory;
+    private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    public EventLoop(String name, Supplier<LineProtocol> protocolFactory) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        this.protocolFactory = protocolFactory;
+    }
+
+    /**
+     * Hands a freshly accepted connection over to this event loop. Can be called from any thread.
+     */
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on this event loop's thread. Can be called from any thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                registerPending();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.finer("Received interrupt. Exiting " + this.toString());
+        } finally {
+            closeAll();
+        }
+    }
+
+    public void shutdown() {
+        logger.finer("Shutting down EventLoop " + this.toString());
+        this.interrupt();
+        selector.wakeup();
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                LineChannel lineChannel = new LineChannel(this, channel, key, protocolFactory.get());
+                key.attach(lineChannel);
+                lineChannel.open();
+            } catch (IOException e) {
+                logger.warning("Failed to register channel " + channel);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing left to clean up
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+
+    private void handle(SelectionKey key) {
+        LineChannel lineChannel = (LineChannel) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable())
+                lineChannel.onReadable();
+            if (key.isValid() && key.isWritable())
+                lineChannel.onWritable();
+        } catch (IOException e) {
+            logger.fine("Closing connection after IO error: " + e.getMessage());
+            lineChannel.closeNow();
+        } catch (RuntimeException e) {
+            // A failing protocol handler must only take down its own connection, not the loop and all others on it
+            logger.warning("Closing connection after unexpected error: " + e);
+            lineChannel.closeNow();
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null)
+                ((LineChannel) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.fine("Error closing selector");
+        }
+    }
+}
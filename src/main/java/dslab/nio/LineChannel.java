@@ -0,0 +1,150 @@
+package dslab.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking connection that exchanges lines. Outgoing lines are queued and written when the socket is writable,
+ * so a slow client never blocks the event loop.
+ * <p>
+ * A protocol that has to wait for something (e.g. a disk write) before it can reply calls {@link #suspend()}. Lines
+ * that arrive in the meantime are held back until {@link #resume()}, so replies stay in command order.
+ * <p>
+ * A peer that shuts down its output after its last command still gets all replies: the channel stops reading, handles
+ * the held back lines and closes once everything queued has been written.
+ */
+public class LineChannel {
+    private static final Logger logger = Logger.getLogger(LineChannel.class.getName());
+    private static final int INITIAL_BUFFER = 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private final EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final LineProtocol protocol;
+    private final LineFramer framer = new LineFramer(INITIAL_BUFFER, MAX_LINE_LENGTH);
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ArrayDeque<String> heldBack = new ArrayDeque<>();
+    private boolean closeAfterFlush = false;
+    private boolean inputClosed = false;
+    private boolean suspended = false;
+
+    LineChannel(EventLoop eventLoop, SocketChannel channel, SelectionKey key, LineProtocol protocol) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.key = key;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Queues a line to be sent to the peer.
+     */
+    public void println(String line) {
+        if (closeAfterFlush)
+            return;
+        outbound.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Closes the connection once all queued lines have been written.
+     */
+    public void close() {
+        this.closeAfterFlush = true;
+    }
+
+    /**
+     * Stops passing received lines to the protocol until {@link #resume()} is called.
+     */
+    public void suspend() {
+        this.suspended = true;
+    }
+
+    /**
+     * Passes the lines received while suspended to the protocol and continues reading.
+     */
+    public void resume() {
+        this.suspended = false;
+        while (!suspended && !heldBack.isEmpty())
+            dispatch(heldBack.poll());
+    }
+
+    /**
+     * Runs a task on the event loop thread of this channel and writes whatever the task queued. This is how code
+     * running on other threads interacts with the channel.
+     */
+    public void execute(Runnable task) {
+        eventLoop.execute(() -> {
+            if (!key.isValid())
+                return;
+            try {
+                task.run();
+                flush();
+            } catch (IOException e) {
+                closeNow();
+            } catch (RuntimeException e) {
+                logger.warning("Closing connection after unexpected error: " + e);
+                closeNow();
+            }
+        });
+    }
+
+    void open() throws IOException {
+        protocol.onOpen(this);
+        flush();
+    }
+
+    void onReadable() throws IOException {
+        int read = framer.read(channel, line -> {
+            if (suspended)
+                heldBack.add(line);
+            else
+                dispatch(line);
+        });
+        if (read < 0)
+            this.inputClosed = true;
+        flush();
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    private void dispatch(String line) {
+        if (!closeAfterFlush)
+            protocol.onLine(line, this);
+    }
+
+    void closeNow() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.fine("Error closing channel " + channel);
+        }
+    }
+
+    private void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer head = outbound.peek();
+            channel.write(head);
+            if (head.hasRemaining())
+                break;
+            outbound.poll();
+        }
+        boolean finished = closeAfterFlush || inputClosed && !suspended && heldBack.isEmpty();
+        if (outbound.isEmpty() && finished) {
+            closeNow();
+            return;
+        }
+        // While suspended, don't read any further so that a client can't pile up held back lines
+        int ops = suspended || inputClosed ? 0 : SelectionKey.OP_READ;
+        if (!outbound.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+        if (key.isValid() && key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+}
@@ -0,0 +1,61 @@
+package dslab.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Splits the bytes read from a channel into lines terminated by {@code \n} (an optional preceding {@code \r} is
+ * dropped). Partial lines are kept in the buffer until the rest arrives; the buffer grows on demand up to
+ * {@code maxLineLength}.
+ */
+public class LineFramer {
+    private ByteBuffer buffer;
+    private final int maxLineLength;
+
+    public LineFramer(int initialCapacity, int maxLineLength) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Reads whatever is available from the channel and passes every completed line to the consumer.
+     *
+     * @return the number of bytes read, or -1 if the channel has reached end-of-stream
+     * @throws IOException if reading fails or a line exceeds the maximum length
+     */
+    public int read(ReadableByteChannel channel, Consumer<String> lines) throws IOException {
+        if (!buffer.hasRemaining())
+            grow();
+        int read = channel.read(buffer);
+        if (read > 0)
+            drain(lines);
+        return read;
+    }
+
+    private void drain(Consumer<String> lines) {
+        buffer.flip();
+        byte[] bytes = buffer.array();
+        int start = buffer.position();
+        for (int i = start; i < buffer.limit(); i++) {
+            if (bytes[i] == '\n') {
+                int end = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+                lines.accept(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        buffer.position(start);
+        buffer.compact();
+    }
+
+    private void grow() throws IOException {
+        if (buffer.capacity() >= maxLineLength)
+            throw new IOException("Line exceeds maximum length of " + maxLineLength + " bytes");
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, maxLineLength));
+        buffer.flip();
+        larger.put(buffer);
+        this.buffer = larger;
+    }
+}
@@ -0,0 +1,19 @@
+package dslab.nio;
+
+/**
+ * A line based protocol driven by an {@link EventLoop}. One instance is created per connection and all callbacks for
+ * that connection happen on the same event loop thread, so implementations don't need to be thread-safe. Callbacks
+ * must never block.
+ */
+public interface LineProtocol {
+
+    /**
+     * Called once after the connection has been accepted, typically to write the greeting.
+     */
+    void onOpen(LineChannel channel);
+
+    /**
+     * Called for every complete line received, without the line terminator.
+     */
+    void onLine(String line, LineChannel channel);
+}
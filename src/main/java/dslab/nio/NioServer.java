@@ -0,0 +1,63 @@
+package dslab.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Selector based alternative to the thread-per-connection listeners. This thread only accepts connections and hands
+ * them to a fixed set of {@link EventLoop}s in round robin order, so idle clients cost no thread at all.
+ */
+public class NioServer extends Thread {
+    private static final Logger logger = Logger.getLogger(NioServer.class.getName());
+    private final ServerSocketChannel serverChannel;
+    private final ArrayList<EventLoop> eventLoops = new ArrayList<>();
+
+    public NioServer(String name, int port, int eventLoops, Supplier<LineProtocol> protocolFactory) throws IOException {
+        super(name + "-acceptor");
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        for (int i = 0; i < eventLoops; i++) {
+            this.eventLoops.add(new EventLoop(name + "-loop-" + i, protocolFactory));
+        }
+    }
+
+    @Override
+    public void run() {
+        for (EventLoop loop : eventLoops)
+            loop.start();
+        int next = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                logger.fine("Processing incoming channel " + channel.toString());
+                eventLoops.get(next).register(channel);
+                next = (next + 1) % eventLoops.size();
+            } catch (ClosedChannelException e) {
+                logger.finer("Received interrupt. Exiting " + this.toString());
+                this.shutdown();
+            } catch (IOException e) {
+                logger.severe("Error accepting on serverChannel " + serverChannel.toString());
+                e.printStackTrace();
+                this.shutdown();
+            }
+        }
+    }
+
+    public void shutdown() {
+        logger.finer("Shutting down NioServer " + this.toString());
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.severe("Error closing serverChannel " + serverChannel.toString());
+        }
+        for (EventLoop loop : eventLoops)
+            loop.shutdown();
+        this.interrupt();
+    }
+}
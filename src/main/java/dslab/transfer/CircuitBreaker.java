@@ -0,0 +1,63 @@
+package dslab.transfer;
+
+/**
+ * Tracks whether the mailbox server of a domain is reachable, so deliveries to a dead server fail fast instead of each
+ * waiting for a connect or read timeout.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the breaker opens and rejects all attempts. Once
+ * {@code openTime} has passed, a single trial attempt is let through (half open): if it succeeds the breaker closes
+ * again, otherwise it stays open for another {@code openTime}.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openTime;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt;
+
+    public CircuitBreaker(int failureThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * @return true if an attempt may be made. Every allowed attempt must be followed by {@link #onSuccess()} or
+     * {@link #onFailure()}.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openTime)
+                    return false;
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // The trial attempt is still running
+                return false;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -4,25 +4,51 @@ import dslab.Email;
 import dslab.Message;
 import dslab.exception.MalformedInputException;
 import dslab.exception.MissingInputException;
+import dslab.exception.ServerBusyException;
+import dslab.util.CommandLine;
+import dslab.util.CommandTable;
+import dslab.util.DMTPBatch;
+import dslab.util.EventLog;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class ClientConnection implements Runnable {
     Logger logger = Logger.getLogger(ClientConnection.class.getName());
+    private static final EventLog events = EventLog.forClass(ClientConnection.class);
     private final Socket socket;
+    private final BlockingQueue<Message> blockingQueue;
+    private final Spool spool;
+    private final long offerTimeout;
     private PrintWriter out;
     private BufferedReader in;
 
     private Message msg = new Message();
+    private boolean batching = false;
 
-    public ClientConnection(Socket connection) {
+    public ClientConnection(Socket connection, BlockingQueue<Message> blockingQueue, Spool spool, long offerTimeout) {
         this.socket = connection;
+        this.blockingQueue = blockingQueue;
+        this.spool = spool;
+        this.offerTimeout = offerTimeout;
     }
 
+    private static final CommandTable<ClientConnection> COMMANDS = new CommandTable<ClientConnection>()
+            .on("quit", ClientConnection::quit)
+            .on("send", ClientConnection::send)
+            .on("to", ClientConnection::to)
+            .on("from", ClientConnection::from)
+            .on("subject", ClientConnection::subject)
+            .on("data", ClientConnection::data)
+            .on(DMTPBatch.COMMAND, ClientConnection::batch);
+
     @Override
     public void run() {
         logger.finer("Preparing for DMTP communication in " + this.toString());
@@ -46,53 +72,9 @@ public class ClientConnection implements Runnable {
             }
             out.println("ok");
 
+            CommandLine line = new CommandLine();
             while (!Thread.currentThread().isInterrupted() && (userInput = in.readLine()) != null) {
-                if ("quit".equals(userInput)) {
-                    out.println("ok bye");
-                    shutdown();
-                } else if ("send".equals(userInput)) {
-                    try {
-                        sendMessage();
-                        out.println("ok");
-                    } catch (MissingInputException e) {
-                        out.println(e.getMessage());
-                    }
-                } else if ("to".equals(userInput.split("\\s+")[0])) {
-                    msg.setTo(new ArrayList<>());
-                    String[] emailAddresses = userInput.split("\\s+")[1].split(",");
-                    int count = 0;
-                    try {
-                        for (String emailAddress : emailAddresses) {
-                            msg.addTo(new Email(emailAddress));
-                            count++;
-                        }
-                        out.println("ok " + count);
-                    } catch (MalformedInputException mie) {
-                        out.println(mie.getMessage());
-                    }
-                } else if ("from".equals(userInput.split("\\s+")[0])) {
-                    try {
-                        Email from = new Email(userInput.split("\\s+")[1]);
-                        this.msg.setFrom(from);
-                        out.println("ok");
-                    } catch (MalformedInputException mie) {
-                        out.println(mie.getMessage());
-                    }
-                } else if ("subject".equals(userInput.split("\\s+")[0])) {
-                    String subject = "";
-                    if (userInput.split("\\s+").length > 1)
-                        subject = userInput.split("\\s+", 2)[1];
-                    logger.info("Setting subject to: " + subject);
-                    msg.setSubject(subject);
-                    out.println("ok");
-                } else if ("data".equals(userInput.split("\\s+")[0])) {
-                    String data = "";
-                    if (userInput.split("\\s+").length > 1)
-                        data = userInput.split("\\s+", 2)[1];
-                    logger.info("Setting data to: " + data);
-                    msg.setData(data);
-                    out.println("ok");
-                } else {
+                if (!COMMANDS.dispatch(this, line.parse(userInput))) {
                     out.println("error protocol error");
                     shutdown();
                 }
@@ -120,10 +102,154 @@ public class ClientConnection implements Runnable {
         Thread.currentThread().interrupt();
     }
 
-    public void sendMessage() throws MissingInputException {
+    private void quit(CommandLine line) {
+        out.println("ok bye");
+        shutdown();
+    }
+
+    private void send(CommandLine line) throws InterruptedIOException {
+        try {
+            sendMessage();
+            out.println("ok");
+        } catch (MissingInputException | ServerBusyException e) {
+            out.println(e.getMessage());
+        }
+    }
+
+    private void to(CommandLine line) {
+        msg.setTo(new ArrayList<>());
+        String[] emailAddresses = line.token(1).split(",");
+        int count = 0;
+        try {
+            for (String emailAddress : emailAddresses) {
+                msg.addTo(Email.of(emailAddress));
+                count++;
+            }
+            out.println("ok " + count);
+        } catch (MalformedInputException mie) {
+            out.println(mie.getMessage());
+        }
+    }
+
+    private void from(CommandLine line) {
+        try {
+            this.msg.setFrom(Email.of(line.token(1)));
+            out.println("ok");
+        } catch (MalformedInputException mie) {
+            out.println(mie.getMessage());
+        }
+    }
+
+    private void subject(CommandLine line) {
+        msg.setSubject(line.rest(1));
+        out.println("ok");
+    }
+
+    private void data(CommandLine line) {
+        msg.setData(line.rest(1));
+        out.println("ok");
+    }
+
+    /**
+     * Handles a {@code batch} command: either negotiates the batch extension or reads a whole block of messages, spools
+     * them with a single append and hands them over, see {@link DMTPBatch}.
+     */
+    private void batch(CommandLine command) throws IOException {
+        if (command.tokens() == 1) {
+            this.batching = true;
+            out.println(DMTPBatch.ACCEPTED);
+            return;
+        }
+        int size = DMTPBatch.size(command);
+        if (!batching || size < 0) {
+            out.println("error protocol error");
+            shutdown();
+            return;
+        }
+        DMTPBatch batch = new DMTPBatch(size, recipient -> null);
+        try {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    shutdown();
+                    return;
+                }
+            } while (!batch.add(line));
+        } catch (MalformedInputException e) {
+            out.println(e.getMessage());
+            shutdown();
+            return;
+        }
+        sendBatch(batch);
+        out.println(batch.status());
+    }
+
+    /**
+     * Spools all complete messages of a batch and hands them over to the delivery workers. The outcome of each
+     * message is recorded in the batch.
+     */
+    private void sendBatch(DMTPBatch batch) throws InterruptedIOException {
+        List<Message> accepted = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < batch.getMessages().size(); i++) {
+            if (batch.getError(i) != null)
+                continue;
+            try {
+                batch.getMessages().get(i).allFieldsSet();
+                accepted.add(batch.getMessages().get(i));
+                positions.add(i);
+            } catch (MissingInputException e) {
+                batch.fail(i, e.getMessage());
+            }
+        }
+        try {
+            spool.acceptAll(accepted).join();
+        } catch (CompletionException e) {
+            logger.severe("Failed to spool batch: " + e.getCause().getMessage());
+            for (int i : positions)
+                batch.fail(i, "error failed to spool message, try again later");
+            return;
+        }
+        for (int j = 0; j < accepted.size(); j++) {
+            try {
+                if (!blockingQueue.offer(accepted.get(j), offerTimeout, TimeUnit.MILLISECONDS)) {
+                    spool.done(accepted.get(j));
+                    batch.fail(positions.get(j), "error server busy, try again later");
+                }
+            } catch (InterruptedException e) {
+                for (int k = j; k < accepted.size(); k++)
+                    spool.done(accepted.get(k));
+                throw new InterruptedIOException("Interrupted while handing over batch");
+            }
+        }
+        events.info("Added batch of {} messages to queue", accepted.size());
+    }
+
+    /**
+     * Spools the current message and hands it over to the delivery workers. If the delivery queue stays full for longer
+     * than the offer timeout, the client is told to retry; the message is kept so that a repeated {@code send} can
+     * succeed.
+     */
+    public void sendMessage() throws MissingInputException, ServerBusyException, InterruptedIOException {
         this.msg.allFieldsSet();
-        TransferServer.Producer producer = new TransferServer.Producer(this.msg);
-        new Thread(producer).start();
+        try {
+            spool.accept(this.msg).join();
+        } catch (CompletionException e) {
+            logger.severe("Failed to spool message: " + e.getCause().getMessage());
+            throw new ServerBusyException("error failed to spool message, try again later");
+        }
+        try {
+            if (!blockingQueue.offer(this.msg, offerTimeout, TimeUnit.MILLISECONDS)) {
+                // The client will send it again, so it must not be replayed as well
+                spool.done(this.msg);
+                throw new ServerBusyException("error server busy, try again later");
+            }
+        } catch (InterruptedException e) {
+            spool.done(this.msg);
+            throw new InterruptedIOException("Interrupted while handing over message");
+        }
+        events.info("Added message {} from {} to queue", msg.getId(), msg.getFrom());
         this.msg = new Message();
     }
 }
@@ -6,19 +6,28 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import dslab.Message;
+
 public class ClientListener extends Thread {
     private final ServerSocket serverSocket;
+    private final BlockingQueue<Message> blockingQueue;
+    private final Spool spool;
+    private final long offerTimeout;
     private final Logger logger = Logger.getLogger(ClientListener.class.getName());
     private final ArrayList<ClientConnection> clients = new ArrayList<>();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ExecutorService executorService;
 
-    public ClientListener(ServerSocket serverSocket) {
+    public ClientListener(ServerSocket serverSocket, BlockingQueue<Message> blockingQueue, Spool spool, long offerTimeout, ExecutorService executorService) {
         this.serverSocket = serverSocket;
+        this.executorService = executorService;
+        this.blockingQueue = blockingQueue;
+        this.spool = spool;
+        this.offerTimeout = offerTimeout;
     }
 
     @Override
@@ -28,7 +37,7 @@ public class ClientListener extends Thread {
             try {
                 Socket s = serverSocket.accept();
                 logger.fine("Processing incoming socket " + s.toString());
-                ClientConnection clientConnection = new ClientConnection(s);
+                ClientConnection clientConnection = new ClientConnection(s, blockingQueue, spool, offerTimeout);
                 clients.add(clientConnection);
                 executorService.submit(clientConnection);
             } catch (InterruptedIOException | SocketException e) {
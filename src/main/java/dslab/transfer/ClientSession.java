@@ -0,0 +1,117 @@
+package dslab.transfer;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.exception.MalformedInputException;
+import dslab.exception.MissingInputException;
+import dslab.nio.DMTPSession;
+import dslab.nio.LineChannel;
+import dslab.util.DMTPBatch;
+import dslab.util.EventLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking counterpart of {@link ClientConnection}. Since an event loop must never wait, a full delivery queue is
+ * reported to the client right away instead of delaying the reply, and the channel is suspended while the message is
+ * being spooled.
+ */
+public class ClientSession extends DMTPSession {
+    private static final Logger logger = Logger.getLogger(ClientSession.class.getName());
+    private static final EventLog events = EventLog.forClass(ClientSession.class);
+    private final BlockingQueue<Message> blockingQueue;
+    private final Spool spool;
+
+    public ClientSession(BlockingQueue<Message> blockingQueue, Spool spool) {
+        this.blockingQueue = blockingQueue;
+        this.spool = spool;
+    }
+
+    @Override
+    protected void to(String[] addresses, LineChannel channel) {
+        int count = 0;
+        try {
+            for (String emailAddress : addresses) {
+                msg.addTo(Email.of(emailAddress));
+                count++;
+            }
+            channel.println("ok " + count);
+        } catch (MalformedInputException mie) {
+            channel.println(mie.getMessage());
+        }
+    }
+
+    @Override
+    protected void send(LineChannel channel) {
+        try {
+            msg.allFieldsSet();
+        } catch (MissingInputException e) {
+            channel.println(e.getMessage());
+            return;
+        }
+        CompletableFuture<Void> spooled = spool.accept(msg);
+        if (spooled.isDone()) {
+            handOver(spooled, channel);
+            return;
+        }
+        channel.suspend();
+        spooled.whenComplete((v, e) -> channel.execute(() -> {
+            handOver(spooled, channel);
+            channel.resume();
+        }));
+    }
+
+    @Override
+    protected String recipient(Email recipient) {
+        return null;
+    }
+
+    @Override
+    protected void send(DMTPBatch batch, LineChannel channel) {
+        List<Message> accepted = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < batch.getMessages().size(); i++) {
+            if (batch.getError(i) != null)
+                continue;
+            try {
+                batch.getMessages().get(i).allFieldsSet();
+                accepted.add(batch.getMessages().get(i));
+                positions.add(i);
+            } catch (MissingInputException e) {
+                batch.fail(i, e.getMessage());
+            }
+        }
+        channel.suspend();
+        spool.acceptAll(accepted).whenComplete((v, e) -> channel.execute(() -> {
+            for (int j = 0; j < accepted.size(); j++) {
+                if (e != null) {
+                    batch.fail(positions.get(j), "error failed to spool message, try again later");
+                } else if (!blockingQueue.offer(accepted.get(j))) {
+                    spool.done(accepted.get(j));
+                    batch.fail(positions.get(j), "error server busy, try again later");
+                }
+            }
+            channel.println(batch.status());
+            channel.resume();
+        }));
+    }
+
+    private void handOver(CompletableFuture<Void> spooled, LineChannel channel) {
+        if (spooled.isCompletedExceptionally()) {
+            channel.println("error failed to spool message, try again later");
+            return;
+        }
+        if (!blockingQueue.offer(msg)) {
+            spool.done(msg);
+            channel.println("error server busy, try again later");
+            return;
+        }
+        events.fine("Added message {} from {} to queue", msg.getId(), msg.getFrom());
+        this.msg = new Message();
+        channel.println("ok");
+    }
+}
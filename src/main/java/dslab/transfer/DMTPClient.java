@@ -0,0 +1,286 @@
+package dslab.transfer;
+
+import dslab.Message;
+import dslab.exception.BatchRejectedException;
+import dslab.exception.PipeliningRejectedException;
+import dslab.util.DMTPBatch;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A single outgoing DMTP session to a mailbox server. The session is opened once (greeting and {@code begin}) and can
+ * then be used for any number of {@code send}s, which is what makes it poolable.
+ * <p>
+ * In pipelined mode, the commands of all messages of a {@link #send(List)} are written with a single flush and the
+ * replies are read afterwards. DMTP replies come in command order and the number of replies to {@code to} follows
+ * from the reply lines themselves, so they can be matched to their commands without waiting for each one. In lockstep
+ * mode every command waits for its reply before the next one is written. Pipelined and batched messages are written
+ * from their {@link Message#writeCommands cached encoding}, so retries and relays don't serialize them again.
+ * <p>
+ * If batching is requested, the {@link DMTPBatch batch extension} is negotiated when the session is opened. All
+ * messages of a send then go out as one block and are answered by a single status line, which takes precedence over
+ * pipelining.
+ */
+public class DMTPClient implements Closeable {
+    private static final Logger logger = Logger.getLogger(DMTPClient.class.getName());
+    private final InetSocketAddress address;
+    private final int readTimeout;
+    private final boolean pipelined;
+    private final boolean batching;
+    private Socket socket;
+    private OutputStream out;
+    private BufferedReader in;
+    private long lastUsed;
+
+    public DMTPClient(InetSocketAddress address, int readTimeout, boolean pipelined) {
+        this(address, readTimeout, pipelined, false);
+    }
+
+    public DMTPClient(InetSocketAddress address, int readTimeout, boolean pipelined, boolean batching) {
+        this.address = address;
+        this.readTimeout = readTimeout;
+        this.pipelined = pipelined;
+        this.batching = batching;
+    }
+
+    /**
+     * Connects to the mailbox server and performs the greeting and {@code begin} handshake, followed by the
+     * negotiation of the batch extension if requested.
+     *
+     * @throws BatchRejectedException if the server answered the batch extension with an error. It closes the
+     *                                session, so a new one has to be opened without batching.
+     * @throws IOException            if the connection fails, also during the negotiation of the batch extension, or
+     *                                the server does not speak DMTP
+     */
+    public void open() throws IOException {
+        logger.fine("Opening DMTP session to " + address);
+        Socket socket = new Socket();
+        try {
+            // Fails on an unresolved address instead of falling back to the local host, and bounds the connect time
+            socket.connect(address, readTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.socket = socket;
+        this.socket.setSoTimeout(readTimeout);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        expectOk(in.readLine(), "greeting");
+        println("begin");
+        out.flush();
+        expectOk(in.readLine(), "begin");
+        if (batching) {
+            println(DMTPBatch.COMMAND);
+            out.flush();
+            String reply = in.readLine();
+            // Only an explicit error means the server doesn't know the extension, anything else is a broken session
+            if (reply != null && reply.startsWith("error"))
+                throw new BatchRejectedException("DMTP server " + address + " rejected batching: " + reply);
+            if (!DMTPBatch.ACCEPTED.equals(reply))
+                throw new IOException("Unexpected DMTP reply during batch negotiation from " + address + ": " + reply);
+        }
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Transfers a message over this session.
+     *
+     * @return {@code null} if the mailbox server accepted the message for all recipients, otherwise the first error
+     * reply of the server
+     * @throws IOException if the session broke, in which case it must not be reused
+     */
+    public String send(Message msg) throws IOException {
+        return send(Collections.singletonList(msg)).get(0);
+    }
+
+    /**
+     * Transfers several messages back to back over this session.
+     *
+     * @return the result of each message in the same order: {@code null} if the mailbox server accepted it for all
+     * recipients, otherwise the first error reply of the server
+     * @throws PipeliningRejectedException if the server couldn't follow the pipelined commands. The session must not
+     *                                     be reused, and the messages should be sent again in lockstep mode.
+     * @throws IOException                 if the session broke, in which case it must not be reused
+     */
+    public List<String> send(List<Message> msgs) throws IOException {
+        List<String> results = new ArrayList<>(msgs.size());
+        send(msgs, results);
+        return results;
+    }
+
+    /**
+     * Like {@link #send(List)}, but appends the result of each message to {@code results} as soon as the server has
+     * answered it. If the session breaks, {@code results} therefore holds the results of the messages that were
+     * answered before, and only the remaining ones have to be sent again.
+     */
+    public void send(List<Message> msgs, List<String> results) throws IOException {
+        if (batching) {
+            for (int from = 0; from < msgs.size(); from += DMTPBatch.MAX_SIZE)
+                results.addAll(batch(msgs.subList(from, Math.min(from + DMTPBatch.MAX_SIZE, msgs.size()))));
+        } else if (pipelined) {
+            for (Message msg : msgs)
+                msg.writeCommands(out);
+            out.flush();
+            for (Message msg : msgs)
+                results.add(readReplies(msg));
+        } else {
+            for (Message msg : msgs)
+                results.add(lockstep(msg));
+        }
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Checks whether the mailbox server is still holding this session open, without consuming any protocol data.
+     *
+     * @return true if the session can be reused
+     */
+    public boolean isHealthy() {
+        if (socket == null || socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+            return false;
+        try {
+            socket.setSoTimeout(1);
+            // A healthy idle session has nothing to read. EOF or unsolicited data both mean we can't use it anymore.
+            in.read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.setSoTimeout(readTimeout);
+            } catch (IOException ignored) {
+                // Socket is broken, the next send will fail and discard the session
+            }
+        }
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public void close() {
+        if (socket == null)
+            return;
+        try {
+            if (!socket.isClosed()) {
+                println("quit");
+                out.flush();
+            }
+            socket.close();
+        } catch (IOException e) {
+            logger.fine("Error closing DMTP session to " + address);
+        }
+    }
+
+    private String lockstep(Message msg) throws IOException {
+        String error = null;
+        error = firstError(error, command("subject " + msg.getSubject()));
+        error = firstError(error, command("data " + msg.getData()));
+        println("to " + msg.printTo());
+        out.flush();
+        error = firstError(error, recipients(msg));
+        error = firstError(error, command("from " + msg.getFrom().toString()));
+        error = firstError(error, command("send"));
+        return error;
+    }
+
+
+    private List<String> batch(List<Message> msgs) throws IOException {
+        println(DMTPBatch.COMMAND + " " + msgs.size());
+        for (Message msg : msgs)
+            msg.writeCommands(out);
+        out.flush();
+        String status = readReply();
+        if (status.equals("error protocol error"))
+            throw new IOException("DMTP server " + address + " rejected a batch of " + msgs.size() + " messages");
+        return DMTPBatch.parseStatus(status, msgs.size());
+    }
+
+    private String readReplies(Message msg) throws IOException {
+        String error = null;
+        error = firstError(error, pipelinedReply());
+        error = firstError(error, pipelinedReply());
+        error = firstError(error, recipients(msg));
+        error = firstError(error, pipelinedReply());
+        error = firstError(error, pipelinedReply());
+        return error;
+    }
+
+    /**
+     * A protocol error means the server lost track of the pipelined commands, after which it closes the session.
+     */
+    private String pipelinedReply() throws IOException {
+        String reply = readReply();
+        if (reply.equals("error protocol error"))
+            throw new PipeliningRejectedException("DMTP server " + address + " rejected pipelined commands");
+        return reply;
+    }
+
+    private String command(String line) throws IOException {
+        println(line);
+        out.flush();
+        return readReply();
+    }
+
+    /**
+     * Reads the replies to a {@code to} command. The mailbox server answers with one error line per unknown recipient,
+     * followed by a single {@code ok <count>} line if at least one recipient was accepted; any other error ends the
+     * reply. All of these lines have to be consumed, otherwise the next command would read stale replies.
+     */
+    private String recipients(Message msg) throws IOException {
+        String error = null;
+        for (int i = 0; i < msg.getTo().size(); i++) {
+            String reply = pipelined ? pipelinedReply() : readReply();
+            error = firstError(error, reply);
+            if (!reply.startsWith("error unknown recipient"))
+                return error;
+        }
+        return error;
+    }
+
+    private void println(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readReply() throws IOException {
+        String reply = in.readLine();
+        if (reply == null)
+            throw new EOFException("DMTP session to " + address + " was closed by the server");
+        return reply;
+    }
+
+    private static String firstError(String error, String reply) {
+        if (error != null || reply == null)
+            return error;
+        return reply.startsWith("error") ? reply : null;
+    }
+
+    private void expectOk(String reply, String step) throws IOException {
+        if (reply == null || !reply.startsWith("ok"))
+            throw new IOException("Unexpected DMTP reply during " + step + " from " + address + ": " + reply);
+    }
+}
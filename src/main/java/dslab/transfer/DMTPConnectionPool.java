@@ -0,0 +1,199 @@
+package dslab.transfer;
+
+import dslab.exception.BatchRejectedException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps open DMTP sessions to the mailbox servers, grouped by mail domain, so that consecutive deliveries to the same
+ * domain don't pay for a new TCP connection and DMTP handshake each time.
+ * <p>
+ * At most {@code maxPerDomain} sessions exist per domain at any time. Sessions that have been idle longer than
+ * {@code idleTimeout} are closed by a background evictor, and sessions that have been idle for a while are checked
+ * with {@link DMTPClient#isHealthy()} before they are handed out again.
+ * <p>
+ * New sessions are pipelined if enabled. Once the mailbox server of a domain has rejected pipelining, all later
+ * sessions to that domain use lockstep mode. Likewise, new sessions negotiate the batch extension if enabled, until
+ * the server of the domain answers it with an error. A session that breaks during the negotiation doesn't count.
+ */
+public class DMTPConnectionPool {
+    private static final Logger logger = Logger.getLogger(DMTPConnectionPool.class.getName());
+    private static final long VALIDATE_AFTER_IDLE = 1000;
+    private final ConcurrentHashMap<String, Domain> domains = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final int maxPerDomain;
+    private final long idleTimeout;
+    private final int readTimeout;
+    private final boolean pipelining;
+    private final boolean batching;
+    private volatile boolean closed = false;
+
+    public DMTPConnectionPool(int maxPerDomain, long idleTimeout, int readTimeout, boolean pipelining, boolean batching) {
+        this.maxPerDomain = maxPerDomain;
+        this.idleTimeout = idleTimeout;
+        this.readTimeout = readTimeout;
+        this.pipelining = pipelining;
+        this.batching = batching;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dmtp-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(idleTimeout / 2, 1);
+        this.evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands out a session to the mailbox server of the given domain, opening a new one if no idle session is
+     * available. Blocks while the domain already has {@code maxPerDomain} sessions in use.
+     *
+     * @param domain  the mail domain served by the mailbox server
+     * @param address the DMTP socket address of the mailbox server
+     * @return an open session that must be given back with {@link #release} or {@link #invalidate}
+     * @throws IOException          if no session could be opened
+     * @throws InterruptedException if interrupted while waiting for a free session
+     */
+    public DMTPClient borrow(String domain, InetSocketAddress address) throws IOException, InterruptedException {
+        if (closed)
+            throw new IOException("DMTP connection pool has been closed");
+        Domain d = domains.computeIfAbsent(domain, k -> new Domain(maxPerDomain, pipelining, batching));
+        d.permits.acquire();
+        try {
+            DMTPClient client;
+            while ((client = d.poll()) != null) {
+                if (client.getAddress().equals(address) && client.isPipelined() == d.pipelined
+                        && client.isBatching() == d.batching && isReusable(client))
+                    return client;
+                logger.fine("Discarding stale DMTP session to " + client.getAddress());
+                client.close();
+            }
+            try {
+                return open(address, d);
+            } catch (BatchRejectedException e) {
+                logger.warning("Mailbox server of " + domain + " doesn't support batching, falling back to single messages");
+                d.batching = false;
+                return open(address, d);
+            }
+        } catch (IOException | RuntimeException e) {
+            d.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a session that is still in a clean protocol state, so it can be reused by the next delivery.
+     */
+    public void release(String domain, DMTPClient client) {
+        Domain d = domains.get(domain);
+        if (closed || d == null) {
+            client.close();
+            return;
+        }
+        d.offer(client);
+        d.permits.release();
+    }
+
+    /**
+     * Closes a session that failed during a transfer and frees its slot.
+     */
+    public void invalidate(String domain, DMTPClient client) {
+        client.close();
+        Domain d = domains.get(domain);
+        if (d != null)
+            d.permits.release();
+    }
+
+    /**
+     * Makes all further sessions to the domain use lockstep mode.
+     */
+    public void disablePipelining(String domain) {
+        Domain d = domains.get(domain);
+        if (d != null && d.pipelined) {
+            logger.warning("Mailbox server of " + domain + " rejected pipelining, falling back to lockstep mode");
+            d.pipelined = false;
+        }
+    }
+
+    private DMTPClient open(InetSocketAddress address, Domain d) throws IOException {
+        DMTPClient client = new DMTPClient(address, readTimeout, d.pipelined, d.batching);
+        try {
+            client.open();
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    public void close() {
+        this.closed = true;
+        evictor.shutdownNow();
+        for (Domain d : domains.values())
+            d.closeAll();
+    }
+
+    private boolean isReusable(DMTPClient client) {
+        long idle = System.currentTimeMillis() - client.getLastUsed();
+        if (idle >= idleTimeout)
+            return false;
+        return idle < VALIDATE_AFTER_IDLE || client.isHealthy();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Domain d : domains.values())
+            d.evictIdleSince(now - idleTimeout);
+    }
+
+    /**
+     * Idle sessions of a single domain. The most recently used session is reused first, so surplus sessions age out
+     * and get evicted when load drops.
+     */
+    private static class Domain {
+        private final Semaphore permits;
+        private final ArrayDeque<DMTPClient> idle = new ArrayDeque<>();
+        private volatile boolean pipelined;
+        private volatile boolean batching;
+
+        Domain(int maxPerDomain, boolean pipelined, boolean batching) {
+            this.permits = new Semaphore(maxPerDomain, true);
+            this.pipelined = pipelined;
+            this.batching = batching;
+        }
+
+        synchronized DMTPClient poll() {
+            return idle.pollFirst();
+        }
+
+        synchronized void offer(DMTPClient client) {
+            idle.offerFirst(client);
+        }
+
+        synchronized void evictIdleSince(long threshold) {
+            Iterator<DMTPClient> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                DMTPClient client = it.next();
+                if (client.getLastUsed() > threshold)
+                    break;
+                logger.fine("Evicting idle DMTP session to " + client.getAddress());
+                it.remove();
+                client.close();
+            }
+        }
+
+        synchronized void closeAll() {
+            for (DMTPClient client : idle)
+                client.close();
+            idle.clear();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package dslab.transfer;
+
+import dslab.Message;
+
+import java.net.InetSocketAddress;
+
+/**
+ * The delivery of a message to the mailbox server of one domain. A message with recipients in several domains is
+ * split into one delivery per domain, which run independently of each other. The message of a delivery only lists the
+ * recipients of its own domain.
+ */
+class Delivery {
+    private final Message msg;
+    private final String domain;
+    private final InetSocketAddress address;
+    private final Runnable onDone;
+
+    /**
+     * @param onDone called exactly once when the delivery has finished, whether it succeeded, failed or was handed to
+     *               the retry scheduler
+     */
+    Delivery(Message msg, String domain, InetSocketAddress address, Runnable onDone) {
+        this.msg = msg;
+        this.domain = domain;
+        this.address = address;
+        this.onDone = onDone;
+    }
+
+    Message getMsg() {
+        return msg;
+    }
+
+    String getDomain() {
+        return domain;
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    void done() {
+        onDone.run();
+    }
+}
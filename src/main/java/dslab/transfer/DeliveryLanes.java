@@ -0,0 +1,307 @@
+package dslab.transfer;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.exception.MalformedInputException;
+import dslab.exception.PipeliningRejectedException;
+import dslab.util.EventLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Delivers messages to the mailbox servers, with one independent lane per domain. Each lane has its own bounded queue,
+ * its own worker threads and its own {@link CircuitBreaker}, so a slow or dead mailbox server only holds up the
+ * deliveries to its own domain. A lane that has had nothing to deliver for {@code laneIdleTimeout} milliseconds is
+ * removed and its workers exit, so domains that are no longer written to don't keep threads around. The next delivery
+ * to the domain starts a new lane.
+ * <p>
+ * Deliveries that can't be made right now, because the breaker of the domain is open, its lane is full or the server
+ * couldn't be reached, are parked in the {@link RetryScheduler}. Error mails are spooled and put on the main delivery
+ * queue like any other message, or parked as well while that queue is full.
+ */
+public class DeliveryLanes {
+    private static final Logger logger = Logger.getLogger(DeliveryLanes.class.getName());
+    private static final EventLog events = EventLog.forClass(DeliveryLanes.class);
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final BlockingQueue<Message> blockingQueue;
+    private final Spool spool;
+    private final RetryScheduler retryScheduler;
+    private final DMTPConnectionPool connectionPool;
+    private final RoutingTable routes;
+    private final int laneWorkers;
+    private final int laneCapacity;
+    private final long laneIdleTimeout;
+    private final int pipelineDepth;
+    private final int breakerThreshold;
+    private final long breakerOpenTime;
+    private final MonitoringEmitter monitoring;
+    private volatile boolean closed = false;
+
+    public DeliveryLanes(BlockingQueue<Message> blockingQueue,
+                         Spool spool,
+                         RetryScheduler retryScheduler,
+                         DMTPConnectionPool connectionPool,
+                         RoutingTable routes,
+                         int laneWorkers,
+                         int laneCapacity,
+                         long laneIdleTimeout,
+                         int pipelineDepth,
+                         int breakerThreshold,
+                         long breakerOpenTime,
+                         MonitoringEmitter monitoring) {
+        this.blockingQueue = blockingQueue;
+        this.spool = spool;
+        this.retryScheduler = retryScheduler;
+        this.connectionPool = connectionPool;
+        this.routes = routes;
+        this.laneWorkers = laneWorkers;
+        this.laneCapacity = laneCapacity;
+        this.laneIdleTimeout = laneIdleTimeout;
+        this.pipelineDepth = pipelineDepth;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerOpenTime = breakerOpenTime;
+        this.monitoring = monitoring;
+    }
+
+    /**
+     * Queues a delivery on the lane of its domain without blocking. The lane is created on first use.
+     */
+    public void dispatch(Delivery delivery) {
+        if (closed) {
+            delivery.done();
+            return;
+        }
+        boolean[] queued = new boolean[1];
+        // Runs atomically with Lane.retire, so a delivery never ends up in the queue of a lane that is gone
+        lanes.compute(delivery.getDomain(), (domain, lane) -> {
+            if (lane == null)
+                lane = new Lane(domain);
+            queued[0] = lane.queue.offer(delivery);
+            return lane;
+        });
+        if (!queued[0])
+            park(delivery, "lane full");
+    }
+
+    /**
+     * Sends an error mail about the given message to its sender. The error mail is spooled and delivered like any
+     * other message. If the delivery queue is full, it is handed to the retry scheduler instead of waiting for room.
+     */
+    public void bounce(Message msg, String error) {
+        events.info("Trying to send error mail to address {}", msg.getFrom());
+        if (routes.lookup(msg.getFrom().getDomain()) == null) {
+            logger.severe("Sending error mail failed because sender domain is unknown");
+            return;
+        }
+        ArrayList<Email> newTo = new ArrayList<>();
+        newTo.add(msg.getFrom());
+        Message errorMessage;
+        try {
+            errorMessage = new Message(newTo, Email.of("mailer@127.0.0.1"), msg.getSubject(), error);
+        } catch (MalformedInputException e) {
+            logger.severe("The server's E-Mail address is wrong. This should not be happening!");
+            e.printStackTrace();
+            return;
+        }
+        spool.accept(errorMessage);
+        // Never blocks: the callers are the threads that drain the delivery queue
+        if (blockingQueue.offer(errorMessage))
+            return;
+        if (retryScheduler.schedule(errorMessage, msg.getFrom().getDomain()))
+            spool.done(errorMessage);
+        else
+            logger.warning("Delivery queue full, error mail to " + msg.getFrom() + " stays in the spool");
+    }
+
+    /**
+     * @return one line per lane with its queue length and breaker state, ordered by domain
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Lane lane : new TreeMap<>(lanes).values())
+            lines.add(lane.domain + " queued " + lane.queue.size() + " breaker " + lane.breaker.getState());
+        return lines;
+    }
+
+    public void shutdown() {
+        this.closed = true;
+        for (Lane lane : lanes.values()) {
+            for (Thread worker : lane.workers)
+                worker.interrupt();
+        }
+    }
+
+    private void park(Delivery delivery, String reason) {
+        events.fine("Parking delivery of message {} to {}: {}", delivery.getMsg().getId(), delivery.getDomain(), reason);
+        if (!retryScheduler.schedule(delivery.getMsg(), delivery.getDomain()))
+            bounce(delivery.getMsg(), "error failed to connect to server");
+        delivery.done();
+    }
+
+    private class Lane {
+        private final String domain;
+        private final ArrayBlockingQueue<Delivery> queue = new ArrayBlockingQueue<>(laneCapacity);
+        private final CircuitBreaker breaker = new CircuitBreaker(breakerThreshold, breakerOpenTime);
+        private final List<Thread> workers = new ArrayList<>();
+        private volatile boolean retired = false;
+
+        Lane(String domain) {
+            this.domain = domain;
+            for (int i = 0; i < laneWorkers; i++) {
+                Thread worker = new Thread(this::work, "lane-" + domain + "-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        private void work() {
+            List<Delivery> batch = new ArrayList<>(pipelineDepth);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Delivery first = queue.poll(laneIdleTimeout, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (retired || retire())
+                            return;
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, pipelineDepth - 1);
+                    // Checked by the worker, so that the single trial of a half open breaker is also settled by it
+                    if (!breaker.allowRequest()) {
+                        for (Delivery delivery : batch)
+                            park(delivery, "circuit breaker open");
+                    } else {
+                        try {
+                            deliver(batch);
+                        } catch (RuntimeException e) {
+                            // Settles the breaker in case this was its half open trial, and keeps the worker alive
+                            logger.severe("Delivering to " + domain + " failed unexpectedly: " + e);
+                            breaker.onFailure();
+                            for (Delivery delivery : batch)
+                                retryOrBounce(delivery.getMsg());
+                        } finally {
+                            for (Delivery delivery : batch)
+                                delivery.done();
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                logger.info("Lane worker for " + domain + " has been interrupted. Exiting...");
+            }
+        }
+
+        /**
+         * Removes this lane if it has nothing queued and its breaker is closed. An open breaker is kept, since a new
+         * lane would go straight back to a server that is considered down. The other workers of the lane exit once
+         * they are idle as well.
+         *
+         * @return true if the lane has been removed
+         */
+        private boolean retire() {
+            lanes.computeIfPresent(domain, (d, lane) -> {
+                if (lane != this || !queue.isEmpty() || breaker.getState() != CircuitBreaker.State.CLOSED)
+                    return lane;
+                this.retired = true;
+                return null;
+            });
+            if (retired)
+                logger.fine("Removing idle lane of " + domain);
+            return retired;
+        }
+
+        /**
+         * Delivers a batch of messages back to back. The routes of a domain only differ while a reload is in
+         * progress, in which case the messages are sent over one session per address.
+         */
+        private void deliver(List<Delivery> batch) {
+            Map<InetSocketAddress, List<Message>> byAddress = new LinkedHashMap<>();
+            for (Delivery delivery : batch)
+                byAddress.computeIfAbsent(delivery.getAddress(), a -> new ArrayList<>()).add(delivery.getMsg());
+            for (Map.Entry<InetSocketAddress, List<Message>> entry : byAddress.entrySet())
+                deliver(entry.getValue(), entry.getKey());
+        }
+
+        private void deliver(List<Message> msgs, InetSocketAddress address) {
+            events.info("Replaying {} messages to {}", msgs.size(), address);
+            List<String> results = new ArrayList<>(msgs.size());
+            boolean failed = false;
+            try {
+                transfer(msgs, address, results);
+                breaker.onSuccess();
+            } catch (IOException | RuntimeException e) {
+                if (e instanceof RuntimeException)
+                    logger.severe("Transfer to " + address + " failed unexpectedly: " + e);
+                breaker.onFailure();
+                failed = true;
+            }
+            // Messages the server has answered are done even if the session broke afterwards
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i) != null)
+                    bounce(msgs.get(i), results.get(i));
+                monitoring.delivered(msgs.get(i).getFrom());
+            }
+            if (failed) {
+                for (Message msg : msgs.subList(results.size(), msgs.size()))
+                    retryOrBounce(msg);
+            }
+        }
+
+        /**
+         * The mailbox server may just be restarting, so the error mail is only sent once retrying has failed.
+         */
+        private void retryOrBounce(Message msg) {
+            if (!retryScheduler.schedule(msg, domain))
+                bounce(msg, "error failed to connect to server");
+        }
+
+        /**
+         * Transfers messages over a pooled DMTP session, appending the result of each message to {@code results} once
+         * the server has answered it. A pooled session may have been closed by the mailbox server since it was last
+         * used, so after a failure the messages that haven't been answered yet are sent once more over another session
+         * from the pool, which may again be an idle one or a new one. If the server rejected pipelining, the second
+         * attempt already uses lockstep mode.
+         */
+        private void transfer(List<Message> msgs, InetSocketAddress address, List<String> results) throws IOException {
+            IOException failure = null;
+            for (int attempt = 0; attempt < 2; attempt++) {
+                DMTPClient client;
+                try {
+                    client = connectionPool.borrow(domain, address);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a DMTP session to " + domain);
+                }
+                try {
+                    client.send(msgs.subList(results.size(), msgs.size()), results);
+                    connectionPool.release(domain, client);
+                    return;
+                } catch (PipeliningRejectedException e) {
+                    connectionPool.invalidate(domain, client);
+                    connectionPool.disablePipelining(domain);
+                    failure = e;
+                } catch (IOException e) {
+                    connectionPool.invalidate(domain, client);
+                    failure = e;
+                } catch (RuntimeException e) {
+                    connectionPool.invalidate(domain, client);
+                    throw e;
+                }
+            }
+            throw failure;
+        }
+    }
+}
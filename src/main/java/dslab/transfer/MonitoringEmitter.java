@@ -0,0 +1,144 @@
+package dslab.transfer;
+
+import dslab.Email;
+import dslab.util.RingBuffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Reports delivered messages to the monitoring server without slowing down the delivery threads.
+ * <p>
+ * Delivery threads only put the sender address into a {@link RingBuffer}, which never blocks; if the buffer is full
+ * the record is dropped and counted. A background flusher drains the buffer periodically and packs as many
+ * {@code <server> <address>} records as fit into one datagram, separated by newlines. All datagrams go out over a
+ * single channel that is connected to the monitoring server once, so its address is only resolved at startup.
+ */
+public class MonitoringEmitter {
+    private static final Logger logger = Logger.getLogger(MonitoringEmitter.class.getName());
+    private final RingBuffer<String> records;
+    private final byte[] server;
+    private final ByteBuffer datagram;
+    private final long flushInterval;
+    private final LongAdder dropped = new LongAdder();
+    private final DatagramChannel channel;
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    /**
+     * @param host          the host of the monitoring server
+     * @param port          the UDP port of the monitoring server
+     * @param server        the {@code host:port} this transfer server reports itself as
+     * @param capacity      the number of records that can wait for the flusher
+     * @param datagramSize  the maximum size of a datagram in bytes
+     * @param flushInterval the time in milliseconds between two flushes
+     */
+    public MonitoringEmitter(String host, int port, String server, int capacity, int datagramSize, long flushInterval) {
+        this.records = new RingBuffer<>(capacity);
+        this.server = (server + " ").getBytes(StandardCharsets.UTF_8);
+        this.datagram = ByteBuffer.allocateDirect(datagramSize);
+        this.flushInterval = flushInterval;
+        this.channel = open(new InetSocketAddress(host, port));
+        this.flusher = new Thread(this::flushLoop, "monitoring-flusher");
+        this.flusher.setDaemon(true);
+        if (channel != null)
+            this.flusher.start();
+    }
+
+    /**
+     * Records the delivery of a message from the given sender. Never blocks.
+     */
+    public void delivered(Email from) {
+        if (channel == null || closed)
+            return;
+        if (!records.offer(from.toString()))
+            dropped.increment();
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Sends the records that are still buffered and closes the channel.
+     */
+    public void close() {
+        this.closed = true;
+        if (channel == null)
+            return;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warning("Error closing monitoring channel");
+        }
+    }
+
+    private static DatagramChannel open(InetSocketAddress address) {
+        if (address.isUnresolved()) {
+            logger.severe("Monitoring host " + address.getHostString() + " could not be resolved, monitoring is disabled");
+            return null;
+        }
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.connect(address);
+            return channel;
+        } catch (IOException e) {
+            logger.severe("Failed to open monitoring channel to " + address + ", monitoring is disabled");
+            return null;
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushInterval));
+            flush();
+        }
+        flush();
+    }
+
+    private void flush() {
+        String address;
+        while ((address = records.poll()) != null) {
+            byte[] record = address.getBytes(StandardCharsets.UTF_8);
+            int length = server.length + record.length + 1;
+            if (length > datagram.capacity()) {
+                logger.warning("Monitoring record for " + address + " exceeds the datagram size and is dropped");
+                dropped.increment();
+                continue;
+            }
+            if (datagram.remaining() < length)
+                send();
+            datagram.put(server).put(record).put((byte) '\n');
+        }
+        send();
+    }
+
+    private void send() {
+        if (datagram.position() == 0)
+            return;
+        datagram.flip();
+        try {
+            channel.write(datagram);
+        } catch (IOException e) {
+            // Nobody listening is not an error worth more than a line, monitoring is best effort
+            logger.fine("Failed to send monitoring datagram: " + e.getMessage());
+        }
+        datagram.clear();
+    }
+}
@@ -0,0 +1,143 @@
+package dslab.transfer;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.util.EventLog;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Delays deliveries that failed because a mailbox server couldn't be reached, instead of bouncing them right away.
+ * <p>
+ * A failed delivery is retried as a copy of the message that only holds the recipients of the failed domain, so the
+ * other domains of the message aren't delivered twice. The copy is spooled and parked in a {@link DelayQueue}; this
+ * thread puts it back on the delivery queue once it is due, so the delivery workers never wait for a retry. The delay
+ * doubles with every attempt up to a maximum, with jitter so that retries to a restarting server don't arrive at once.
+ * Once the deadline since the first failure has passed, the delivery is given up and the caller sends the error mail.
+ */
+public class RetryScheduler extends Thread {
+    private static final Logger logger = Logger.getLogger(RetryScheduler.class.getName());
+    private static final EventLog events = EventLog.forClass(RetryScheduler.class);
+    private final DelayQueue<Retry> due = new DelayQueue<>();
+    private final ConcurrentHashMap<Integer, Retry> retries = new ConcurrentHashMap<>();
+    private final BlockingQueue<Message> blockingQueue;
+    private final Spool spool;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final long deadline;
+
+    /**
+     * @param blockingQueue the delivery queue retries are put back on
+     * @param spool         the spool retries are journaled in
+     * @param initialDelay  the delay in milliseconds before the first retry
+     * @param maxDelay      the maximum delay in milliseconds between two retries
+     * @param deadline      the time in milliseconds after the first failure at which a delivery is given up
+     */
+    public RetryScheduler(BlockingQueue<Message> blockingQueue, Spool spool, long initialDelay, long maxDelay, long deadline) {
+        super("retry-scheduler");
+        setDaemon(true);
+        this.blockingQueue = blockingQueue;
+        this.spool = spool;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Schedules another attempt to deliver the message to the recipients of the given domain.
+     *
+     * @return false if the deadline of the delivery has passed, in which case the caller has to send the error mail
+     */
+    public boolean schedule(Message msg, String domain) {
+        long now = System.currentTimeMillis();
+        Retry previous = retries.get(msg.getId());
+        int attempt = previous == null ? 1 : previous.attempt + 1;
+        long firstFailure = previous == null ? now : previous.firstFailure;
+        if (now - firstFailure >= deadline)
+            return false;
+
+        long backoff = Math.min(maxDelay, initialDelay << Math.min(attempt - 1, 30));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        // The last attempt is made right at the deadline rather than skipped
+        long dueAt = Math.min(now + delay, firstFailure + deadline);
+
+        Message copy = new Message(recipientsOf(msg, domain), msg.getFrom(), msg.getSubject(), msg.getData());
+        // Journaled before the caller marks the original done, so a crash in between doesn't lose the retry
+        spool.accept(copy);
+        Retry retry = new Retry(copy, attempt, firstFailure, dueAt);
+        retries.put(copy.getId(), retry);
+        due.add(retry);
+        events.info("Retrying delivery of message {} to {} in {}ms (attempt {})", copy.getId(), domain, dueAt - now, attempt);
+        return true;
+    }
+
+    /**
+     * Forgets the retry state of a message once its delivery has finished.
+     */
+    public void finished(Message msg) {
+        retries.remove(msg.getId());
+    }
+
+    /**
+     * @return the number of deliveries waiting for their next attempt
+     */
+    public int waiting() {
+        return due.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                Retry retry = due.take();
+                blockingQueue.put(retry.msg);
+            }
+        } catch (InterruptedException e) {
+            logger.info("Retry scheduler has been interrupted. " + due.size() + " retries stay in the spool");
+        }
+    }
+
+    public void shutdown() {
+        interrupt();
+    }
+
+    private static ArrayList<Email> recipientsOf(Message msg, String domain) {
+        ArrayList<Email> recipients = new ArrayList<>();
+        for (Email recipient : msg.getTo()) {
+            if (domain.equals(recipient.getDomain()))
+                recipients.add(recipient);
+        }
+        return recipients;
+    }
+
+    private static class Retry implements Delayed {
+        private final Message msg;
+        private final int attempt;
+        private final long firstFailure;
+        private final long dueAt;
+
+        Retry(Message msg, int attempt, long firstFailure, long dueAt) {
+            this.msg = msg;
+            this.attempt = attempt;
+            this.firstFailure = firstFailure;
+            this.dueAt = dueAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueAt, ((Retry) other).dueAt);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package dslab.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Maps mail domains to the DMTP socket addresses of their mailbox servers, as configured in a properties resource
+ * ({@code <domain>=<host>:<port>}).
+ * <p>
+ * The table is an immutable map behind an {@link AtomicReference}: lookups are a single volatile read and a hash
+ * lookup without any locking, and host names are resolved when the table is loaded rather than per delivery. A reload
+ * builds a new map and swaps it in, so deliveries in flight keep the address they looked up. If the resource is a
+ * file, it is checked for changes periodically and reloaded without a restart.
+ */
+public class RoutingTable {
+    private static final Logger logger = Logger.getLogger(RoutingTable.class.getName());
+    private final String resource;
+    private final AtomicReference<Map<String, InetSocketAddress>> routes = new AtomicReference<>(Map.of());
+    private ScheduledExecutorService watcher;
+    private volatile long lastModified;
+
+    /**
+     * Loads the table from the given classpath resource.
+     *
+     * @throws IOException if the resource can't be found or read
+     */
+    public RoutingTable(String resource) throws IOException {
+        this.resource = resource;
+        reload();
+    }
+
+    /**
+     * @return the address of the mailbox server of the domain, or null if the domain is unknown
+     */
+    public InetSocketAddress lookup(String domain) {
+        return routes.get().get(domain);
+    }
+
+    /**
+     * @return the number of known domains
+     */
+    public int size() {
+        return routes.get().size();
+    }
+
+    /**
+     * Reads the resource again and replaces the table. Malformed entries are skipped. A route whose host can't be
+     * resolved keeps the domain's previous route, if there is one, and is skipped otherwise. If the resource can't be
+     * read at all, the current table stays in place.
+     *
+     * @throws IOException if the resource can't be found or read
+     */
+    public synchronized void reload() throws IOException {
+        URL url = RoutingTable.class.getClassLoader().getResource(resource);
+        if (url == null)
+            throw new IOException("Routing resource " + resource + " not found");
+        File file = asFile(url);
+        if (file != null)
+            this.lastModified = file.lastModified();
+
+        Properties properties = new Properties();
+        try (InputStream in = url.openStream()) {
+            properties.load(in);
+        }
+        Map<String, InetSocketAddress> previous = routes.get();
+        Map<String, InetSocketAddress> table = new HashMap<>();
+        for (String domain : properties.stringPropertyNames()) {
+            String address = properties.getProperty(domain).trim();
+            int colon = address.lastIndexOf(':');
+            try {
+                if (colon <= 0)
+                    throw new NumberFormatException();
+                InetSocketAddress route = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+                if (route.isUnresolved()) {
+                    // An unresolved address must never reach a socket, which would connect to the local host instead
+                    InetSocketAddress kept = previous.get(domain);
+                    logger.warning("Host of domain " + domain + " could not be resolved: " + address
+                            + (kept != null ? ", keeping " + kept : ", skipping it"));
+                    if (kept != null)
+                        table.put(domain, kept);
+                    continue;
+                }
+                table.put(domain, route);
+            } catch (IllegalArgumentException e) {
+                logger.warning("Skipping malformed route " + domain + "=" + address);
+            }
+        }
+        routes.set(Map.copyOf(table));
+        logger.info("Loaded " + table.size() + " routes from " + resource);
+    }
+
+    /**
+     * Starts checking the resource for changes. Only has an effect if the resource is a file.
+     *
+     * @param interval the interval in milliseconds between two checks
+     */
+    public void watch(long interval) {
+        this.watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "routing-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.watcher.scheduleWithFixedDelay(this::reloadIfModified, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        if (watcher != null)
+            watcher.shutdownNow();
+    }
+
+    private void reloadIfModified() {
+        URL url = RoutingTable.class.getClassLoader().getResource(resource);
+        File file = url == null ? null : asFile(url);
+        if (file == null || file.lastModified() == lastModified)
+            return;
+        try {
+            reload();
+        } catch (IOException e) {
+            logger.severe("Reloading routes from " + resource + " failed: " + e.getMessage());
+        }
+    }
+
+    private static File asFile(URL url) {
+        if (!"file".equals(url.getProtocol()))
+            return null;
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package dslab.transfer;
+
+import dslab.Message;
+import dslab.util.MessageCodec;
+import dslab.util.SegmentedLog;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Journal of the messages a transfer server has accepted but not yet delivered. A message is appended before the
+ * client gets its {@code ok}, and marked done once its delivery has finished (successfully or with an error mail).
+ * After a crash or shutdown, the undelivered messages are replayed on startup.
+ * <p>
+ * Appends are group-committed by the underlying {@link SegmentedLog}, so concurrent clients share an fsync instead of
+ * queueing up behind each other. The spool id of a message is stored in {@link Message#getId()}, which is otherwise
+ * unused in the transfer server.
+ * <p>
+ * Without a directory the spool only assigns ids, and messages live in memory as before.
+ */
+public class Spool {
+    private static final Logger logger = Logger.getLogger(Spool.class.getName());
+    private static final byte ACCEPTED = 1;
+    private static final byte DONE = 2;
+    private final SegmentedLog log;
+    private final ConcurrentHashMap<Integer, Message> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final int compactionSegments;
+    private final ScheduledExecutorService compactor;
+
+    private Spool(SegmentedLog log, int compactionSegments, long compactionInterval) {
+        this.log = log;
+        this.compactionSegments = compactionSegments;
+        if (log == null) {
+            this.compactor = null;
+            return;
+        }
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "spool-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        this.compactor.scheduleWithFixedDelay(this::compactIfNeeded, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a spool that keeps nothing on disk
+     */
+    public static Spool inMemory() {
+        return new Spool(null, 0, 0);
+    }
+
+    /**
+     * Opens the spool in the given directory and reads the messages that have not been delivered yet. They are
+     * returned by {@link #undelivered()} and must be handed to the delivery workers again.
+     *
+     * @param directory          the directory of the journal files
+     * @param segmentSize        the size in bytes after which a new segment is started
+     * @param compactionSegments the number of segments after which the journal is compacted
+     * @param compactionInterval the interval in milliseconds in which the need for compaction is checked
+     * @throws IOException if the journal can't be read or opened for writing
+     */
+    public static Spool open(Path directory, long segmentSize, int compactionSegments, long compactionInterval)
+            throws IOException {
+        SegmentedLog log = new SegmentedLog(directory, segmentSize);
+        Spool spool = new Spool(log, compactionSegments, compactionInterval);
+        spool.recover(log.recoveryFiles());
+        return spool;
+    }
+
+    /**
+     * Assigns a spool id to the message and journals it.
+     *
+     * @return a future that completes once the message is durable
+     */
+    public CompletableFuture<Void> accept(Message msg) {
+        msg.setId(ids.incrementAndGet());
+        if (log == null)
+            return CompletableFuture.completedFuture(null);
+        // Registered before the append, so a compaction that rolls past the record also sees the message
+        pending.put(msg.getId(), msg);
+        return log.append(encodeAccepted(msg)).whenComplete((v, e) -> {
+            if (e != null)
+                pending.remove(msg.getId());
+        });
+    }
+
+    /**
+     * Journals several messages like {@link #accept}, but with a single append for all of them.
+     *
+     * @return a future that completes once all messages are durable
+     */
+    public CompletableFuture<Void> acceptAll(List<Message> msgs) {
+        for (Message msg : msgs)
+            msg.setId(ids.incrementAndGet());
+        if (log == null || msgs.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        List<byte[]> records = new ArrayList<>(msgs.size());
+        for (Message msg : msgs) {
+            pending.put(msg.getId(), msg);
+            records.add(encodeAccepted(msg));
+        }
+        return log.appendAll(records).whenComplete((v, e) -> {
+            if (e != null) {
+                for (Message msg : msgs)
+                    pending.remove(msg.getId());
+            }
+        });
+    }
+
+    /**
+     * Marks a message as delivered, or as given up on, so that it isn't replayed. Doesn't wait for the record to be
+     * written: losing it in a crash only leads to a duplicate delivery.
+     */
+    public void done(Message msg) {
+        if (log == null || pending.remove(msg.getId()) == null)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(5);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(DONE);
+            out.writeInt(msg.getId());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.append(bytes.toByteArray());
+    }
+
+    /**
+     * @return the messages that were recovered on startup and haven't been marked done yet, in order of acceptance
+     */
+    public List<Message> undelivered() {
+        List<Message> messages = new ArrayList<>(pending.values());
+        messages.sort(Comparator.comparing(Message::getId));
+        return messages;
+    }
+
+    /**
+     * Replaces all closed segments by a snapshot of the undelivered messages.
+     */
+    public void compact() throws IOException {
+        long seq = log.roll().join();
+        List<Message> live = new ArrayList<>(pending.values());
+        log.writeSnapshot(seq, sink -> {
+            for (Message msg : live)
+                sink.accept(encodeAccepted(msg));
+        });
+        logger.info("Compacted spool up to segment " + seq + " into " + live.size() + " messages");
+    }
+
+    /**
+     * Stops writing. Messages that are still pending stay in the journal and are replayed on the next start.
+     */
+    public void close() {
+        if (log == null)
+            return;
+        compactor.shutdownNow();
+        log.close();
+    }
+
+    private static byte[] encodeAccepted(Message msg) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(ACCEPTED);
+            out.writeInt(msg.getId());
+            MessageCodec.writeMessage(out, msg);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void compactIfNeeded() {
+        if (log.segmentsSinceSnapshot() <= compactionSegments)
+            return;
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            logger.severe("Compacting spool failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A message can be accepted in one file and marked done in a later one, so all files are read before anything is
+     * dropped.
+     */
+    private void recover(List<Path> files) throws IOException {
+        Set<Integer> done = new HashSet<>();
+        int maxId = 0;
+        try {
+            for (Path file : files)
+                maxId = Math.max(maxId, replay(file, done));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        pending.keySet().removeAll(done);
+        // Ids of delivered messages are not handed out again, later segments may still mark them done
+        ids.set(maxId);
+        logger.info("Recovered " + pending.size() + " undelivered messages from " + files.size() + " spool files");
+    }
+
+    /**
+     * @return the highest id found in the file
+     */
+    private int replay(Path file, Set<Integer> done) throws IOException {
+        int[] maxId = {0};
+        SegmentedLog.read(file, record -> {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                byte type = in.readByte();
+                int id = in.readInt();
+                maxId[0] = Math.max(maxId[0], id);
+                if (type == ACCEPTED) {
+                    Message msg = MessageCodec.readMessage(in);
+                    msg.setId(id);
+                    pending.put(id, msg);
+                } else if (type == DONE) {
+                    done.add(id);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return maxId[0];
+    }
+}
@@ -2,10 +2,14 @@ package dslab.transfer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import at.ac.tuwien.dsg.orvell.Shell;
@@ -14,20 +18,52 @@ import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
 import dslab.Email;
 import dslab.Message;
-import dslab.exception.MalformedInputException;
-import dslab.exception.UnknownDomainException;
+import dslab.nio.NioServer;
 import dslab.util.Config;
+import dslab.util.ConnectionExecutors;
+import dslab.util.EventLog;
 
 public class TransferServer implements ITransferServer, Runnable {
     private static final Logger logger = Logger.getLogger(TransferServer.class.getName());
+    private static final EventLog events = EventLog.forClass(TransferServer.class);
     private ServerSocket serverSocket;
     private final Shell shell;
     private final Integer serverPort;
-    public static final HashMap<String, Integer> mailboxServers = new HashMap<>();
-    public static volatile BlockingQueue<Message> blockingQueue = new LinkedBlockingQueue<>(10);
-    private final Consumer consumer;
-    public static final Object lock = new Object();
-
+    private final String serverMode;
+    private final int eventLoops;
+    private NioServer nioServer;
+    private final String executionMode;
+    private final String routingConfig;
+    private final long routingReloadInterval;
+    private RoutingTable routingTable;
+    private final BlockingQueue<Message> blockingQueue;
+    private final long offerTimeout;
+    private final ArrayList<Consumer> consumers = new ArrayList<>();
+    private final int workers;
+    private final String monitoringHost;
+    private final Integer monitoringPort;
+    private final int monitoringCapacity;
+    private final int monitoringDatagramSize;
+    private final int monitoringFlushInterval;
+    private final DMTPConnectionPool connectionPool;
+    private final boolean spoolEnabled;
+    private final String spoolDir;
+    private final long spoolSegmentSize;
+    private final int spoolCompactionSegments;
+    private final long spoolCompactionInterval;
+    private Spool spool = Spool.inMemory();
+    private final long retryInitialDelay;
+    private final long retryMaxDelay;
+    private final long retryDeadline;
+    private RetryScheduler retryScheduler;
+    private final int laneWorkers;
+    private final int laneCapacity;
+    private final long laneIdleTimeout;
+    private final int pipelineDepth;
+    private final int breakerThreshold;
+    private final long breakerOpenTime;
+    private DeliveryLanes lanes;
+    private MonitoringEmitter monitoring;
 
     /**
      * Creates a new server instance.
@@ -38,14 +74,40 @@ public class TransferServer implements ITransferServer, Runnable {
      * @param out         the output stream to write console output to
      */
     public TransferServer(String componentId, Config config, InputStream in, PrintStream out) {
-        Config univerze = new Config("mailbox-univer-ze.properties");
-        Config earthplanet = new Config("mailbox-earth-planet.properties");
-        mailboxServers.put(univerze.getString("domain"), univerze.getInt("dmtp.tcp.port"));
-        mailboxServers.put(earthplanet.getString("domain"), earthplanet.getInt("dmtp.tcp.port"));
-        String monitoringHost = config.getString("monitoring.host");
-        Integer monitoringPort = config.getInt("monitoring.port");
+        this.routingConfig = config.getString("domains.config", "domains.properties");
+        this.routingReloadInterval = config.getInt("domains.reload.interval", 5000);
+        this.monitoringHost = config.getString("monitoring.host");
+        this.monitoringPort = config.getInt("monitoring.port");
+        this.monitoringCapacity = config.getInt("monitoring.buffer.capacity", 4096);
+        this.monitoringDatagramSize = config.getInt("monitoring.datagram.size", 1400);
+        this.monitoringFlushInterval = config.getInt("monitoring.flush.interval", 50);
         this.serverPort = config.getInt("tcp.port");
-        this.consumer = new Consumer(mailboxServers, monitoringHost, monitoringPort, "127.0.0.1", this.serverPort);
+        this.executionMode = config.getString("execution.mode", ConnectionExecutors.PLATFORM);
+        this.serverMode = config.getString("dmtp.server.mode", "blocking");
+        this.eventLoops = config.getInt("dmtp.nio.event.loops", 2);
+        this.connectionPool = new DMTPConnectionPool(
+                config.getInt("dmtp.pool.max.per.domain", 4),
+                config.getInt("dmtp.pool.idle.timeout", 30000),
+                config.getInt("dmtp.read.timeout", 10000),
+                Boolean.parseBoolean(config.getString("dmtp.pipelining", "true")),
+                Boolean.parseBoolean(config.getString("dmtp.batching", "true")));
+        this.blockingQueue = new LinkedBlockingQueue<>(config.getInt("delivery.queue.capacity", 1000));
+        this.offerTimeout = config.getInt("delivery.offer.timeout", 2000);
+        this.workers = config.getInt("delivery.workers", Runtime.getRuntime().availableProcessors());
+        this.spoolEnabled = Boolean.parseBoolean(config.getString("spool.enabled", "false"));
+        this.spoolDir = config.getString("spool.dir", "data/" + componentId);
+        this.spoolSegmentSize = config.getInt("spool.segment.size", 16 * 1024 * 1024);
+        this.spoolCompactionSegments = config.getInt("spool.compaction.segments", 4);
+        this.spoolCompactionInterval = config.getInt("spool.compaction.interval", 60000);
+        this.retryInitialDelay = config.getInt("delivery.retry.initial.delay", 500);
+        this.retryMaxDelay = config.getInt("delivery.retry.max.delay", 10000);
+        this.retryDeadline = config.getInt("delivery.retry.deadline", 60000);
+        this.laneWorkers = config.getInt("delivery.lane.workers", 2);
+        this.laneCapacity = config.getInt("delivery.lane.capacity", 1000);
+        this.laneIdleTimeout = config.getInt("delivery.lane.idle.timeout", 60000);
+        this.pipelineDepth = config.getInt("delivery.pipeline.depth", 8);
+        this.breakerThreshold = config.getInt("delivery.breaker.failures", 5);
+        this.breakerOpenTime = config.getInt("delivery.breaker.open.time", 5000);
         this.shell = new Shell(in, out);
         this.shell.register(this);
         this.shell.setPrompt("Transferserver> ");
@@ -53,19 +115,101 @@ public class TransferServer implements ITransferServer, Runnable {
 
     @Override
     public void run() {
+        try {
+            this.routingTable = new RoutingTable(routingConfig);
+            this.routingTable.watch(routingReloadInterval);
+        } catch (IOException e) {
+            logger.severe("Error loading domain routes from " + routingConfig);
+            e.printStackTrace();
+            shutdown();
+        }
+        if (spoolEnabled) {
+            try {
+                this.spool = Spool.open(Paths.get(spoolDir), spoolSegmentSize, spoolCompactionSegments, spoolCompactionInterval);
+            } catch (IOException e) {
+                logger.severe("Error opening spool in " + spoolDir);
+                e.printStackTrace();
+                shutdown();
+            }
+        }
+        this.retryScheduler = new RetryScheduler(blockingQueue, spool, retryInitialDelay, retryMaxDelay, retryDeadline);
+        this.retryScheduler.start();
+        this.monitoring = new MonitoringEmitter(monitoringHost, monitoringPort, "127.0.0.1:" + serverPort,
+                monitoringCapacity, monitoringDatagramSize, monitoringFlushInterval);
+        this.lanes = new DeliveryLanes(blockingQueue, spool, retryScheduler, connectionPool, routingTable, laneWorkers,
+                laneCapacity, laneIdleTimeout, pipelineDepth, breakerThreshold, breakerOpenTime, monitoring);
+        for (int i = 0; i < workers; i++) {
+            this.consumers.add(new Consumer(blockingQueue, spool, retryScheduler, lanes, routingTable));
+        }
+        for (Consumer consumer : consumers)
+            consumer.start();
+        requeueUndelivered();
         logger.info("Creating serverSocket for " + this.toString());
         try {
-            this.serverSocket = new ServerSocket(serverPort);
+            if ("nio".equals(serverMode))
+                this.nioServer = new NioServer("transfer", serverPort, eventLoops, () -> new ClientSession(blockingQueue, spool));
+            else
+                this.serverSocket = new ServerSocket(serverPort);
         } catch (IOException e) {
-            logger.severe("Error creating serverSocket " + serverSocket.toString());
+            logger.severe("Error creating serverSocket on port " + serverPort);
             e.printStackTrace();
             shutdown();
         }
-        new ClientListener(serverSocket).start();
-        this.consumer.start();
+        if (nioServer != null)
+            nioServer.start();
+        else
+            new ClientListener(serverSocket, blockingQueue, spool, offerTimeout, ConnectionExecutors.create(executionMode)).start();
         this.shell.run();
     }
 
+    /**
+     * Hands the messages that were accepted before the last shutdown back to the workers, before any new message is
+     * accepted. Blocks while the queue is full, since the workers are already draining it.
+     */
+    private void requeueUndelivered() {
+        int requeued = 0;
+        try {
+            for (Message msg : spool.undelivered()) {
+                blockingQueue.put(msg);
+                requeued++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (requeued > 0)
+            logger.info("Requeued " + requeued + " undelivered messages from the spool");
+    }
+
+    /**
+     * CLI command to reload the domain routes without a restart.
+     */
+    @Command
+    public void reload() {
+        try {
+            routingTable.reload();
+            this.shell.out().println("ok " + routingTable.size() + " domains");
+        } catch (IOException e) {
+            this.shell.out().println("error " + e.getMessage());
+        }
+    }
+
+    /**
+     * CLI command to report the state of the delivery lanes and the number of deliveries waiting for a retry.
+     */
+    @Command
+    public void stats() {
+        this.shell.out().println("queued " + blockingQueue.size());
+        if (lanes != null) {
+            for (String lane : lanes.describe())
+                this.shell.out().println("lane " + lane);
+        }
+        if (retryScheduler != null)
+            this.shell.out().println("retries waiting " + retryScheduler.waiting());
+        if (monitoring != null)
+            this.shell.out().println("monitoring dropped " + monitoring.dropped());
+        this.shell.out().println("log events dropped " + EventLog.dropped());
+    }
+
     @Command
     @Override
     public void shutdown() {
@@ -76,7 +220,21 @@ public class TransferServer implements ITransferServer, Runnable {
             logger.severe("Error closing serverSocket " + serverSocket.toString());
             e.printStackTrace();
         }
-        this.consumer.interrupt();
+        if (nioServer != null)
+            nioServer.shutdown();
+        for (Consumer consumer : consumers)
+            consumer.interrupt();
+        if (retryScheduler != null)
+            this.retryScheduler.shutdown();
+        if (lanes != null)
+            this.lanes.shutdown();
+        if (monitoring != null)
+            this.monitoring.close();
+        if (routingTable != null)
+            this.routingTable.close();
+        this.connectionPool.close();
+        this.spool.close();
+        EventLog.flush(1000);
         throw new StopShellException();
     }
 
@@ -85,56 +243,28 @@ public class TransferServer implements ITransferServer, Runnable {
         server.run();
     }
 
-    static class Producer extends Thread {
-        private final Message msg;
-
-        Producer(Message msg) {
-            this.msg = msg;
-        }
-
-        @Override
-        public void run() {
-            try {
-                produce();
-            } catch (InterruptedException e) {
-                logger.info("Producer thread has been interrupted. Exiting..." + this.toString());
-                shutdown();
-            }
-        }
-
-        private void produce() throws InterruptedException {
-            synchronized (lock) {
-                while (blockingQueue.size() == 10) {
-                    lock.wait();
-                }
-                blockingQueue.put(msg);
-                logger.info("Added message " + msg.toString() + " to queue");
-                lock.notify();
-            }
-        }
-
-        private void shutdown() {
-            Thread.currentThread().interrupt();
-        }
-    }
-
+    /**
+     * One of the dispatchers. They take messages from the shared queue, split each message into one delivery per
+     * domain and hand those to the {@link DeliveryLanes} without blocking, where the domains of a message are delivered
+     * in parallel. Once all deliveries of a message have finished, the message is marked done in the spool.
+     */
     static class Consumer extends Thread {
-        private final HashMap<String, Integer> mailboxServers;
-        private final String monitoringHost;
-        private final Integer monitoringPort;
-        private final String transferHost;
-        private final Integer transferPort;
+        private final BlockingQueue<Message> blockingQueue;
+        private final Spool spool;
+        private final RetryScheduler retryScheduler;
+        private final DeliveryLanes lanes;
+        private final RoutingTable routingTable;
 
-        Consumer(HashMap<String, Integer> mailboxServers,
-                 String monitoringHost,
-                 Integer monitoringPort,
-                 String transferHost,
-                 Integer transferPort) {
-            this.mailboxServers = mailboxServers;
-            this.monitoringHost = monitoringHost;
-            this.monitoringPort = monitoringPort;
-            this.transferHost = transferHost;
-            this.transferPort = transferPort;
+        Consumer(BlockingQueue<Message> blockingQueue,
+                 Spool spool,
+                 RetryScheduler retryScheduler,
+                 DeliveryLanes lanes,
+                 RoutingTable routingTable) {
+            this.blockingQueue = blockingQueue;
+            this.spool = spool;
+            this.retryScheduler = retryScheduler;
+            this.lanes = lanes;
+            this.routingTable = routingTable;
         }
 
         @Override
@@ -149,138 +279,50 @@ public class TransferServer implements ITransferServer, Runnable {
 
         private void consume() throws InterruptedException {
             while (!Thread.currentThread().isInterrupted()) {
-                synchronized (lock) {
-                    while (blockingQueue.isEmpty()) {
-                        logger.info("Queue currently empty. Waiting for messages to appear...");
-                        lock.wait();
-                    }
-                    logger.info("Queue not empty. Processing message...");
-                    Message msg = blockingQueue.take();
-                    logger.info("Took message " + msg.toString() + " from queue");
-                    HashMap<String, Boolean> sent = new HashMap<>();
-                    sent.put("earth.planet", false);
-                    sent.put("univer.ze", false);
-                    for (Email recipient : msg.getTo()) {
-                        logger.info("msg.getTo() contains: " + msg.getTo().toString());
-                        logger.info("Trying to send message to " + recipient.toString());
-                        int port;
-                        try {
-                            port = domainLookup(recipient);
-                            logger.info("Domain lookup successful. Port is: " + port);
-                            if (!sent.get(recipient.getDomain())) {
-                                replayMessage(msg, port);
-                                sent.put(recipient.getDomain(), true);
-                            }
-                        } catch (UnknownDomainException e) {
-                            sendErrorMail(msg, e.getMessage());
-                        }
-                    }
-                    lock.notify();
+                Message msg = blockingQueue.take();
+                events.info("Took message {} from {} to {} from queue", msg.getId(), msg.getFrom(), msg.getTo());
+                AtomicInteger remaining = new AtomicInteger();
+                List<Delivery> deliveries = fanOut(msg, () -> {
+                    if (remaining.decrementAndGet() == 0)
+                        finished(msg);
+                });
+                if (deliveries.isEmpty()) {
+                    finished(msg);
+                    continue;
                 }
+                // All branches are counted before the first is dispatched, so none can complete the message early
+                remaining.set(deliveries.size());
+                for (Delivery delivery : deliveries)
+                    lanes.dispatch(delivery);
             }
         }
 
-        private void replayMessage(Message msg, int port) {
-            logger.info("Replaying message for message: " + msg.toString() + " on port " + port);
-            try {
-                Socket socket = new Socket("127.0.0.1", port);
-                PrintWriter socketOut = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                socketIn.readLine();
-                socketOut.println("begin");
-                socketIn.readLine();
-                socketOut.println("subject " + msg.getSubject());
-                socketIn.readLine();
-                socketOut.println("data " + msg.getData());
-                socketIn.readLine();
-                socketOut.println("to " + msg.printTo());
-                socketIn.readLine();
-                socketOut.println("from " + msg.getFrom().toString());
-                socketIn.readLine();
-                socketOut.println("send");
-                String result = socketIn.readLine();
-                if (result.startsWith("error"))
-                    sendErrorMail(msg, result);
-                socketIn.close();
-                socketOut.close();
-                socket.close();
-                sendMonitoringMessage(msg);
-            } catch (IOException e) {
-                sendErrorMail(msg, "error failed to connect to server");
-            }
-        }
-
-        private int domainLookup(Email email) throws UnknownDomainException {
-            logger.info("Performing domain lookup for address " + email.toString());
-            if (this.mailboxServers.containsKey(email.getDomain()))
-                return this.mailboxServers.get(email.getDomain());
-            throw new UnknownDomainException("error domain not found: " + email.getDomain());
-        }
-
-        private void sendErrorMail(Message msg, String error) {
-            logger.info("Trying to send error mail to address " + msg.getFrom());
-            Message errorMessage = msg;
-            int port;
-            try {
-                port = domainLookup(errorMessage.getFrom());
-            } catch (UnknownDomainException e) {
-                logger.severe("Sending error mail failed because sender domain is unknown");
-                return;
-            }
-            ArrayList<Email> newTo = new ArrayList<>();
-            newTo.add(errorMessage.getFrom());
-            errorMessage.setTo(newTo);
-            try {
-                errorMessage.setFrom(new Email("mailer@127.0.0.1"));
-            } catch (MalformedInputException e) {
-                logger.severe("The server's E-Mail address is wrong. This should not be happening!");
-                e.printStackTrace();
-                return;
-            }
-            try {
-                Socket socket = new Socket("127.0.0.1", port);
-                PrintWriter socketOut = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                socketIn.readLine();
-                socketOut.println("begin");
-                socketIn.readLine();
-                socketOut.println("subject " + errorMessage.getSubject());
-                socketIn.readLine();
-                socketOut.println("data " + error);
-                socketIn.readLine();
-                socketOut.println("to " + errorMessage.printTo());
-                socketIn.readLine();
-                socketOut.println("from " + errorMessage.getFrom().toString());
-                socketIn.readLine();
-                socketOut.println("send");
-                String result = socketIn.readLine();
-                if (result.startsWith("error"))
-                    logger.severe("Sending error mail failed: " + result);
-                socketIn.close();
-                socketOut.close();
-                socket.close();
-                sendMonitoringMessage(errorMessage);
-            } catch (IOException e) {
-                logger.severe("Sending error mail failed because socket communication failed");
+        /**
+         * Groups the recipients of a message by domain. Each domain gets a copy of the message that only lists its own
+         * recipients, so a mailbox server never sees the addresses of other domains. Unknown domains are bounced once
+         * each.
+         *
+         * @param onDone called once by each of the returned deliveries when it has finished
+         */
+        private List<Delivery> fanOut(Message msg, Runnable onDone) {
+            Map<String, ArrayList<Email>> byDomain = new LinkedHashMap<>();
+            for (Email recipient : msg.getTo())
+                byDomain.computeIfAbsent(recipient.getDomain(), d -> new ArrayList<>()).add(recipient);
+            List<Delivery> deliveries = new ArrayList<>(byDomain.size());
+            for (Map.Entry<String, ArrayList<Email>> domain : byDomain.entrySet()) {
+                InetSocketAddress address = routingTable.lookup(domain.getKey());
+                if (address == null) {
+                    lanes.bounce(msg, "error domain not found: " + domain.getKey());
+                    continue;
+                }
+                deliveries.add(new Delivery(msg.forRecipients(domain.getValue()), domain.getKey(), address, onDone));
             }
+            return deliveries;
         }
 
-        private void sendMonitoringMessage(Message msg) {
-            DatagramSocket socket;
-            try {
-                socket = new DatagramSocket();
-            } catch (SocketException e) {
-                logger.severe("Failed to create DatagramSocket!");
-                return;
-            }
-            byte[] sendBuffer = (transferHost + ":" + transferPort + " " + msg.getFrom().toString()).getBytes();
-            try {
-                DatagramPacket packet = new DatagramPacket(sendBuffer, sendBuffer.length, Inet4Address.getByName(monitoringHost), monitoringPort);
-                socket.send(packet);
-            } catch (IOException e) {
-                logger.severe("Failed to send packet to " + monitoringHost + " on port " + monitoringPort);
-            }
-            socket.close();
+        private void finished(Message msg) {
+            spool.done(msg);
+            retryScheduler.finished(msg);
         }
 
         private void shutdown() {
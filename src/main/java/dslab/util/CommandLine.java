@@ -0,0 +1,111 @@
+package dslab.util;
+
+/**
+ * A tokenized line of the DMTP or DMAP protocol.
+ * <p>
+ * A line is scanned once when it is {@link #parse parsed}; only the boundaries of its whitespace separated tokens are
+ * recorded. Matching the command and reading numeric arguments works on the line itself, so strings are only created
+ * for the arguments a handler actually asks for. An instance is meant to be reused for all lines of a connection and
+ * must not be shared between threads.
+ */
+public final class CommandLine {
+    private static final int MAX_TOKENS = 8;
+    private final int[] starts = new int[MAX_TOKENS];
+    private final int[] ends = new int[MAX_TOKENS];
+    private String line = "";
+    private int count;
+
+    /**
+     * Tokenizes the line, replacing the previous one.
+     *
+     * @return this instance
+     */
+    public CommandLine parse(String line) {
+        this.line = line;
+        this.count = 0;
+        int i = 0;
+        int length = line.length();
+        while (true) {
+            while (i < length && isSpace(line.charAt(i)))
+                i++;
+            if (i == length)
+                return this;
+            int start = i;
+            while (i < length && !isSpace(line.charAt(i)))
+                i++;
+            if (count < MAX_TOKENS) {
+                starts[count] = start;
+                ends[count] = i;
+            }
+            count++;
+        }
+    }
+
+    /**
+     * @return the number of tokens, including the command
+     */
+    public int tokens() {
+        return count;
+    }
+
+    /**
+     * @return true if the command, the first token, is the given word
+     */
+    public boolean is(String command) {
+        return count > 0 && ends[0] - starts[0] == command.length()
+                && line.regionMatches(starts[0], command, 0, command.length());
+    }
+
+    /**
+     * @return the i-th token, where the command is token 0, or an empty string if there are fewer tokens
+     */
+    public String token(int i) {
+        if (i >= count)
+            return "";
+        check(i);
+        return line.substring(starts[i], ends[i]);
+    }
+
+    /**
+     * @return the rest of the line from the i-th token on, with its whitespace preserved, or an empty string if there
+     * are fewer tokens
+     */
+    public String rest(int i) {
+        if (i >= count)
+            return "";
+        check(i);
+        return line.substring(starts[i]);
+    }
+
+    /**
+     * @return the i-th token as a non-negative decimal number
+     * @throws NumberFormatException if the token is not a number
+     */
+    public int number(int i) {
+        check(i);
+        if (ends[i] - starts[i] > 9)
+            throw new NumberFormatException("Number too long: " + token(i));
+        int value = 0;
+        for (int p = starts[i]; p < ends[i]; p++) {
+            char c = line.charAt(p);
+            if (c < '0' || c > '9')
+                throw new NumberFormatException("Not a number: " + token(i));
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return line;
+    }
+
+    private void check(int i) {
+        if (i < 0 || i >= Math.min(count, MAX_TOKENS))
+            throw new IndexOutOfBoundsException("Token " + i + " of " + count + " in: " + line);
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f' || c == 0x0B;
+    }
+}
@@ -0,0 +1,48 @@
+package dslab.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the commands of a line protocol to their handlers. A table is built once per connection type and shared by
+ * all its connections; the connection is passed to the handler along with the parsed line.
+ *
+ * @param <T> the type of the connection the handlers operate on
+ */
+public final class CommandTable<T> {
+
+    @FunctionalInterface
+    public interface Handler<T> {
+        void handle(T connection, CommandLine line) throws IOException;
+    }
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Handler<T>> handlers = new ArrayList<>();
+
+    /**
+     * Registers the handler of a command. Tables are built before they are shared and must not be changed afterwards.
+     *
+     * @return this table
+     */
+    public CommandTable<T> on(String command, Handler<T> handler) {
+        names.add(command);
+        handlers.add(handler);
+        return this;
+    }
+
+    /**
+     * Runs the handler of the line's command.
+     *
+     * @return false if the command is unknown, in which case nothing was run
+     */
+    public boolean dispatch(T connection, CommandLine line) throws IOException {
+        for (int i = 0; i < names.size(); i++) {
+            if (line.is(names.get(i))) {
+                handlers.get(i).handle(connection, line);
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,44 @@
+package dslab.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor that runs the connection handlers of a listener, according to the component's
+ * {@code execution.mode}.
+ */
+public final class ConnectionExecutors {
+
+    /**
+     * One platform thread per connection, reused through a cached pool.
+     */
+    public static final String PLATFORM = "platform";
+
+    /**
+     * One virtual thread per connection. Blocking reads park the virtual thread instead of holding an OS thread, so
+     * the blocking protocol code can serve many more concurrent sessions.
+     */
+    public static final String VIRTUAL = "virtual";
+
+    private ConnectionExecutors() {
+        // static utility class
+    }
+
+    /**
+     * Returns a new executor for the given mode.
+     *
+     * @param mode either {@link #PLATFORM} or {@link #VIRTUAL}
+     * @return the executor
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public static ExecutorService create(String mode) {
+        switch (mode) {
+            case PLATFORM:
+                return Executors.newCachedThreadPool();
+            case VIRTUAL:
+                return Executors.newVirtualThreadPerTaskExecutor();
+            default:
+                throw new IllegalArgumentException("Unknown execution mode: " + mode);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package dslab.util;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.exception.MalformedInputException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * One block of the DMTP batch extension, which lets a sender transfer many messages with a single reply.
+ * <p>
+ * A client negotiates the extension with a bare {@code batch} command after {@code begin}; servers that support it
+ * answer {@code ok batch}, all others answer with a protocol error. Afterwards {@code batch <n>} announces a block of
+ * n messages. Each message consists of its {@code from}, {@code to}, {@code subject} and {@code data} lines in any
+ * order and is terminated by {@code send}. None of these lines is answered. Once the whole block has been read, the
+ * server stores all messages at once and replies with a single status line holding one entry per message, separated
+ * by {@code |}: either {@code ok} or the first error of that message.
+ */
+public class DMTPBatch {
+    public static final String COMMAND = "batch";
+    public static final String ACCEPTED = "ok batch";
+    public static final int MAX_SIZE = 1000;
+    private static final String SEPARATOR = "|";
+
+    private static final CommandTable<DMTPBatch> COMMANDS = new CommandTable<DMTPBatch>()
+            .on("from", DMTPBatch::from)
+            .on("to", DMTPBatch::to)
+            .on("subject", DMTPBatch::subject)
+            .on("data", DMTPBatch::data)
+            .on("send", DMTPBatch::send);
+
+    private final CommandLine line = new CommandLine();
+    private final int size;
+    private final Function<Email, String> recipients;
+    private final List<Message> messages;
+    private final List<String> errors;
+    private Message current = new Message();
+    private String error;
+
+    /**
+     * @param size       the number of messages announced by the {@code batch} command
+     * @param recipients checks a recipient and returns the error to report for it, or null if it is accepted
+     */
+    public DMTPBatch(int size, Function<Email, String> recipients) {
+        this.size = size;
+        this.recipients = recipients;
+        this.messages = new ArrayList<>(size);
+        this.errors = new ArrayList<>(size);
+    }
+
+    /**
+     * @return the size announced by the argument of a {@code batch} command, or -1 if it isn't a valid size
+     */
+    public static int size(CommandLine command) {
+        try {
+            int size = command.tokens() == 2 ? command.number(1) : -1;
+            return size > 0 && size <= MAX_SIZE ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the next line of the block.
+     *
+     * @return true once the last message of the block has been read
+     * @throws MalformedInputException if the line is not part of a message, which ends the session
+     */
+    public boolean add(String line) throws MalformedInputException {
+        boolean known;
+        try {
+            known = COMMANDS.dispatch(this, this.line.parse(line));
+        } catch (IOException e) {
+            // None of the handlers does I/O
+            throw new IllegalStateException(e);
+        }
+        if (!known)
+            throw new MalformedInputException("error protocol error");
+        return messages.size() == size;
+    }
+
+    private void from(CommandLine line) {
+        try {
+            current.setFrom(Email.of(line.token(1)));
+        } catch (MalformedInputException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private void to(CommandLine line) {
+        current.getTo().clear();
+        for (String address : line.token(1).split(",")) {
+            try {
+                Email recipient = Email.of(address);
+                String rejected = recipients.apply(recipient);
+                if (rejected == null)
+                    current.addTo(recipient);
+                else
+                    fail(rejected);
+            } catch (MalformedInputException e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+
+    private void subject(CommandLine line) {
+        current.setSubject(line.rest(1));
+    }
+
+    private void data(CommandLine line) {
+        current.setData(line.rest(1));
+    }
+
+    private void send(CommandLine line) {
+        messages.add(current);
+        errors.add(error);
+        current = new Message();
+        error = null;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the first error of the i-th message, or null if there was none so far
+     */
+    public String getError(int i) {
+        return errors.get(i);
+    }
+
+    /**
+     * Records an error for the i-th message, unless it already has one.
+     */
+    public void fail(int i, String error) {
+        if (errors.get(i) == null)
+            errors.set(i, error);
+    }
+
+    /**
+     * @return the status line answering the block
+     */
+    public String status() {
+        StringBuilder status = new StringBuilder();
+        for (String e : errors) {
+            if (status.length() > 0)
+                status.append(SEPARATOR);
+            // Error texts may quote addresses, which must not break up the vector
+            status.append(e == null ? "ok" : e.replace(SEPARATOR, "/"));
+        }
+        return status.toString();
+    }
+
+    /**
+     * Splits the status line of a block of the given size.
+     *
+     * @return the result of each message in order: null if it was accepted, otherwise its error
+     * @throws IOException if the line is not a status line for that many messages
+     */
+    public static List<String> parseStatus(String line, int count) throws IOException {
+        String[] entries = line.split("\\" + SEPARATOR, -1);
+        if (entries.length != count)
+            throw new IOException("Expected a batch status for " + count + " messages but got: " + line);
+        List<String> results = new ArrayList<>(count);
+        for (String entry : entries) {
+            if (entry.equals("ok"))
+                results.add(null);
+            else if (entry.startsWith("error"))
+                results.add(entry);
+            else
+                throw new IOException("Malformed batch status: " + line);
+        }
+        return results;
+    }
+
+    private void fail(String message) {
+        if (error == null)
+            error = message;
+    }
+}
@@ -0,0 +1,204 @@
+package dslab.util;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logging for the per-message paths of the servers, where a synchronous {@link Logger} call with a concatenated
+ * message would cost more than the work it reports.
+ * <p>
+ * An event is a constant template with {@code {}} placeholders and up to four arguments. If its level is disabled for
+ * the source's logger, the call returns right away. Otherwise the template and the argument references are copied into
+ * a slot of a ring of pre-allocated events, which takes one CAS and allocates nothing. A single background writer
+ * formats the events in order and passes them on to the source's {@link Logger} with their original time, so
+ * handlers and levels are configured as usual. If the ring is full, the event is dropped and counted.
+ * <p>
+ * Arguments are formatted later on the writer thread. Callers must therefore only pass values that aren't changed
+ * afterwards, like strings, numbers and {@link dslab.Email}s, not messages that are still being built or whose body
+ * may be released.
+ */
+public final class EventLog {
+    static final int CAPACITY = 8192;
+    private static final Event[] events = new Event[CAPACITY];
+    private static final AtomicLong head = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile long tail;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++)
+            events[i] = new Event(i - CAPACITY);
+        writer = new Thread(EventLog::writeLoop, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private final Logger logger;
+
+    private EventLog(Logger logger) {
+        this.logger = logger;
+    }
+
+    public static EventLog forClass(Class<?> source) {
+        return new EventLog(Logger.getLogger(source.getName()));
+    }
+
+    public void info(String event, Object arg) {
+        log(Level.INFO, event, arg, null, null, null);
+    }
+
+    public void info(String event, Object arg1, Object arg2) {
+        log(Level.INFO, event, arg1, arg2, null, null);
+    }
+
+    public void info(String event, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, event, arg1, arg2, arg3, null);
+    }
+
+    public void info(String event, Object arg1, Object arg2, Object arg3, Object arg4) {
+        log(Level.INFO, event, arg1, arg2, arg3, arg4);
+    }
+
+    public void fine(String event, Object arg) {
+        log(Level.FINE, event, arg, null, null, null);
+    }
+
+    public void fine(String event, Object arg1, Object arg2) {
+        log(Level.FINE, event, arg1, arg2, null, null);
+    }
+
+    public void fine(String event, Object arg1, Object arg2, Object arg3) {
+        log(Level.FINE, event, arg1, arg2, arg3, null);
+    }
+
+    public void warning(String event, Object arg) {
+        log(Level.WARNING, event, arg, null, null, null);
+    }
+
+    /**
+     * @return the number of events dropped because the ring was full
+     */
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits until the writer has passed on all events logged so far, e.g. before a server shuts down.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     */
+    public static void flush(long timeout) {
+        long target = head.get();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (tail < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private void log(Level level, String template, Object arg1, Object arg2, Object arg3, Object arg4) {
+        if (!logger.isLoggable(level))
+            return;
+        long h;
+        do {
+            h = head.get();
+            if (h - tail >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(h, h + 1));
+        Event event = events[(int) (h % CAPACITY)];
+        event.time = System.currentTimeMillis();
+        event.logger = logger;
+        event.level = level;
+        event.template = template;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.arg3 = arg3;
+        event.arg4 = arg4;
+        // Publishes the fields above to the writer
+        event.sequence = h;
+    }
+
+    private static void writeLoop() {
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            long t = tail;
+            Event event = events[(int) (t % CAPACITY)];
+            if (event.sequence != t) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            try {
+                text.setLength(0);
+                event.format(text);
+                LogRecord record = new LogRecord(event.level, text.toString());
+                record.setInstant(Instant.ofEpochMilli(event.time));
+                record.setLoggerName(event.logger.getName());
+                record.setSourceClassName(event.logger.getName());
+                event.logger.log(record);
+            } catch (RuntimeException e) {
+                // A broken argument or handler must not stop the writer, the event is lost either way
+            } finally {
+                event.clear();
+                tail = t + 1;
+            }
+        }
+    }
+
+    private static final class Event {
+        private volatile long sequence;
+        private long time;
+        private Logger logger;
+        private Level level;
+        private String template;
+        private Object arg1;
+        private Object arg2;
+        private Object arg3;
+        private Object arg4;
+
+        private Event(long sequence) {
+            this.sequence = sequence;
+        }
+
+        private void format(StringBuilder text) {
+            int arg = 0;
+            int from = 0;
+            int at;
+            while ((at = template.indexOf("{}", from)) >= 0) {
+                text.append(template, from, at);
+                text.append(arg(arg++));
+                from = at + 2;
+            }
+            text.append(template, from, template.length());
+        }
+
+        private Object arg(int i) {
+            switch (i) {
+                case 0:
+                    return arg1;
+                case 1:
+                    return arg2;
+                case 2:
+                    return arg3;
+                case 3:
+                    return arg4;
+                default:
+                    return "{}";
+            }
+        }
+
+        private void clear() {
+            logger = null;
+            level = null;
+            template = null;
+            arg1 = arg2 = arg3 = arg4 = null;
+        }
+    }
+}
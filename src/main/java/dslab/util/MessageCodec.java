@@ -0,0 +1,76 @@
+package dslab.util;
+
+import dslab.Email;
+import dslab.Message;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Binary encoding of messages for the on-disk logs. Strings are written as length and UTF-8 bytes, so that they may
+ * contain any character, including line breaks.
+ */
+public final class MessageCodec {
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Writes sender, recipients, subject and data of a message. The id is left to the caller.
+     */
+    public static void writeMessage(DataOutputStream out, Message msg) throws IOException {
+        out.writeBoolean(msg.getFrom() != null);
+        if (msg.getFrom() != null)
+            writeEmail(out, msg.getFrom());
+        writeEmails(out, msg.getTo());
+        writeString(out, msg.getSubject());
+        writeString(out, msg.getData());
+    }
+
+    public static Message readMessage(DataInputStream in) throws IOException {
+        Email from = in.readBoolean() ? readEmail(in) : null;
+        ArrayList<Email> to = readEmails(in);
+        String subject = readString(in);
+        String data = readString(in);
+        return new Message(to, from, subject, data);
+    }
+
+    public static void writeEmails(DataOutputStream out, Collection<Email> emails) throws IOException {
+        out.writeInt(emails.size());
+        for (Email email : emails)
+            writeEmail(out, email);
+    }
+
+    public static ArrayList<Email> readEmails(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<Email> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            emails.add(readEmail(in));
+        return emails;
+    }
+
+    public static void writeEmail(DataOutputStream out, Email email) throws IOException {
+        writeString(out, email.getUsername());
+        writeString(out, email.getDomain());
+    }
+
+    public static Email readEmail(DataInputStream in) throws IOException {
+        return Email.of(readString(in), readString(in));
+    }
+
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,70 @@
+package dslab.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producers and a single consumer.
+ * <p>
+ * Producers claim a slot by advancing the head with a CAS and then publish their element into it; they never block and
+ * never wait for each other, and an element offered to a full buffer is rejected instead. The consumer takes elements
+ * in claim order and frees each slot before advancing the tail, which is what lets producers reuse it. A slot that has
+ * been claimed but not yet published stops the consumer until the next poll.
+ */
+public class RingBuffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    public RingBuffer(int capacity) {
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Adds an element without blocking. May be called from any thread.
+     *
+     * @return false if the buffer is full
+     */
+    public boolean offer(T element) {
+        while (true) {
+            long h = head.get();
+            if (h - tail >= capacity)
+                return false;
+            if (head.compareAndSet(h, h + 1)) {
+                slots.set((int) (h % capacity), element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest element. Must only be called from the consumer thread.
+     *
+     * @return the element, or null if there is none that has been published yet
+     */
+    public T poll() {
+        long t = tail;
+        if (t == head.get())
+            return null;
+        int slot = (int) (t % capacity);
+        T element = slots.get(slot);
+        if (element == null)
+            return null;
+        slots.set(slot, null);
+        tail = t + 1;
+        return element;
+    }
+
+    /**
+     * @return the number of claimed slots, including those not published yet
+     */
+    public int size() {
+        return (int) (head.get() - tail);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
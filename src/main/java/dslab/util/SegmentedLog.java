@@ -0,0 +1,379 @@
+package dslab.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A durable append-only log of opaque records, split into numbered segment files ({@code <seq>.log}).
+ * <p>
+ * All writes go through a single writer thread. While it waits for one {@code fsync}, new appends pile up in the queue
+ * and are written and synced together in the next round (group commit), so callers pay for durability without
+ * serializing on it. {@link #append} returns a future that completes once the record is on disk.
+ * <p>
+ * The log never grows unbounded: {@link #writeSnapshot} replaces everything up to a segment with a snapshot file
+ * ({@code <seq>.snapshot}) containing only the records that are still needed. On startup {@link #recoveryFiles()}
+ * yields the newest snapshot followed by all later segments. Each record is stored as length, CRC32 and payload; a
+ * torn record at the end of a segment (crash during write) is ignored when reading.
+ */
+public class SegmentedLog {
+    private static final Logger logger = Logger.getLogger(SegmentedLog.class.getName());
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int HEADER_SIZE = 8;
+    private static final Entry STOP = new Entry(null, null);
+
+    private final Path directory;
+    private final long segmentSize;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile long snapshotSeq;
+    private FileChannel segment;
+    private volatile long segmentSeq;
+
+    /**
+     * Opens the log in the given directory, creating it if necessary. Appends always start a new segment, so a
+     * segment left incomplete by a crash is never written to again.
+     *
+     * @param directory   the directory holding the segment and snapshot files
+     * @param segmentSize the size in bytes after which a new segment is started
+     * @throws IOException if the directory or the first segment can't be created
+     */
+    public SegmentedLog(Path directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        this.snapshotSeq = latest(SNAPSHOT_SUFFIX);
+        this.segmentSeq = Math.max(latest(SEGMENT_SUFFIX), snapshotSeq) + 1;
+        this.segment = openSegment(segmentSeq);
+        this.writer = new Thread(this::writeLoop, "log-writer-" + directory.getFileName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a record for writing.
+     *
+     * @return a future that completes once the record has been synced to disk
+     */
+    public CompletableFuture<Void> append(byte[] record) {
+        return appendAll(List.of(record), null);
+    }
+
+    /**
+     * Like {@link #append(byte[])}, but runs the given action on the writer thread once the record is durable, before
+     * the returned future completes and before any later {@link #roll()} completes.
+     */
+    public CompletableFuture<Void> append(byte[] record, Runnable onDurable) {
+        return appendAll(List.of(record), onDurable);
+    }
+
+    /**
+     * Queues several records as one unit: they are written back to back and synced together, without records of other
+     * appends in between.
+     *
+     * @return a future that completes once all records have been synced to disk
+     */
+    public CompletableFuture<Void> appendAll(List<byte[]> records) {
+        return appendAll(records, null);
+    }
+
+    /**
+     * Like {@link #appendAll(List)}, but runs the given action on the writer thread once the records are durable,
+     * before the returned future completes and before any later {@link #roll()} completes. A caller that applies the
+     * change in the action can therefore rely on every change appended before a roll being visible once the roll is.
+     * If the action throws, the future completes with that exception.
+     */
+    public CompletableFuture<Void> appendAll(List<byte[]> records, Runnable onDurable) {
+        Entry entry = new Entry(records, onDurable);
+        if (closed)
+            entry.done.completeExceptionally(new IOException("Log " + directory + " has been closed"));
+        else
+            queue.add(entry);
+        return entry.done;
+    }
+
+    /**
+     * Closes the active segment and starts a new one. Everything appended before this call ends up in segments with a
+     * sequence number up to the returned one.
+     *
+     * @return a future holding the sequence number of the segment that was closed
+     */
+    public CompletableFuture<Long> roll() {
+        Entry entry = new Entry(null, null);
+        CompletableFuture<Long> rolled = entry.done.thenApply(v -> entry.rolledSeq);
+        if (closed)
+            entry.done.completeExceptionally(new IOException("Log " + directory + " has been closed"));
+        else
+            queue.add(entry);
+        return rolled;
+    }
+
+    /**
+     * @return the number of segments written since the last snapshot, including the active one
+     */
+    public long segmentsSinceSnapshot() {
+        return segmentSeq - snapshotSeq;
+    }
+
+    /**
+     * Replaces all segments up to and including {@code seq} (and any older snapshot) by a snapshot. The snapshot is
+     * written to a temporary file and renamed once it is synced, so a crash never leaves a partial snapshot behind.
+     *
+     * @param seq     the last segment covered by the snapshot, as returned by {@link #roll()}
+     * @param records called with a sink that accepts the snapshot's records
+     * @throws IOException if the snapshot can't be written
+     */
+    public void writeSnapshot(long seq, Consumer<Consumer<byte[]>> records) throws IOException {
+        Path tmp = directory.resolve(seq + SNAPSHOT_SUFFIX + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            IOException[] failure = new IOException[1];
+            records.accept(record -> {
+                if (failure[0] != null)
+                    return;
+                try {
+                    writeFully(out, frame(record));
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null)
+                throw failure[0];
+            out.force(true);
+        }
+        Files.move(tmp, directory.resolve(seq + SNAPSHOT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        this.snapshotSeq = seq;
+        deleteUpTo(seq);
+    }
+
+    /**
+     * Returns the files to replay on startup in order: the newest snapshot (if any) followed by all later segments.
+     * Files made obsolete by that snapshot are deleted.
+     */
+    public List<Path> recoveryFiles() throws IOException {
+        deleteUpTo(snapshotSeq);
+        List<Path> files = new ArrayList<>();
+        if (snapshotSeq > 0)
+            files.add(directory.resolve(snapshotSeq + SNAPSHOT_SUFFIX));
+        for (long seq : sequences(SEGMENT_SUFFIX)) {
+            if (seq > snapshotSeq && seq < segmentSeq)
+                files.add(directory.resolve(seq + SEGMENT_SUFFIX));
+        }
+        return files;
+    }
+
+    /**
+     * Reads all intact records of a segment or snapshot file. Reading stops at the first incomplete or corrupt record.
+     */
+    public static void read(Path file, Consumer<byte[]> records) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (true) {
+                header.clear();
+                if (!readFully(in, header))
+                    return;
+                header.flip();
+                int length = header.getInt();
+                int crc = header.getInt();
+                if (length < 0 || length > in.size() - in.position()) {
+                    logger.warning("Ignoring torn record at the end of " + file);
+                    return;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                if (!readFully(in, payload) || checksum(payload.array()) != crc) {
+                    logger.warning("Ignoring corrupt record at the end of " + file);
+                    return;
+                }
+                records.accept(payload.array());
+            }
+        }
+    }
+
+    /**
+     * Writes everything that has been queued so far and stops the writer. The writer is not interrupted, since that
+     * would close the file channel in the middle of a write.
+     */
+    public void close() {
+        this.closed = true;
+        queue.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            int stop = batch.indexOf(STOP);
+            if (stop >= 0) {
+                running = false;
+                for (Entry late : batch.subList(stop + 1, batch.size()))
+                    late.done.completeExceptionally(new IOException("Log " + directory + " has been closed"));
+                batch.subList(stop, batch.size()).clear();
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            logger.warning("Error closing segment " + segmentSeq + " of " + directory);
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) {
+        int synced = 0;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Entry entry = batch.get(i);
+                if (entry.records == null) {
+                    sync(batch, synced, i);
+                    synced = i;
+                    entry.rolledSeq = segmentSeq;
+                    rollSegment();
+                    continue;
+                }
+                for (byte[] record : entry.records)
+                    writeFully(segment, frame(record));
+                if (segment.position() >= segmentSize) {
+                    sync(batch, synced, i + 1);
+                    synced = i + 1;
+                    rollSegment();
+                }
+            }
+            sync(batch, synced, batch.size());
+        } catch (IOException e) {
+            logger.severe("Writing to log " + directory + " failed: " + e.getMessage());
+            for (int i = synced; i < batch.size(); i++)
+                batch.get(i).done.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Makes the entries in {@code [from, to)} durable with a single fsync, runs their actions and completes their
+     * futures.
+     */
+    private void sync(List<Entry> batch, int from, int to) throws IOException {
+        if (from >= to)
+            return;
+        segment.force(false);
+        for (int i = from; i < to; i++) {
+            Entry entry = batch.get(i);
+            try {
+                if (entry.onDurable != null)
+                    entry.onDurable.run();
+                entry.done.complete(null);
+            } catch (RuntimeException e) {
+                logger.severe("Applying a record of log " + directory + " failed: " + e);
+                entry.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        segment.force(false);
+        segment.close();
+        segmentSeq++;
+        segment = openSegment(segmentSeq);
+    }
+
+    private FileChannel openSegment(long seq) throws IOException {
+        return FileChannel.open(directory.resolve(seq + SEGMENT_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void deleteUpTo(long seq) throws IOException {
+        for (long s : sequences(SEGMENT_SUFFIX)) {
+            if (s <= seq)
+                Files.deleteIfExists(directory.resolve(s + SEGMENT_SUFFIX));
+        }
+        for (long s : sequences(SNAPSHOT_SUFFIX)) {
+            if (s < seq)
+                Files.deleteIfExists(directory.resolve(s + SNAPSHOT_SUFFIX));
+        }
+    }
+
+    private long latest(String suffix) throws IOException {
+        long latest = 0;
+        for (long seq : sequences(suffix))
+            latest = Math.max(latest, seq);
+        return latest;
+    }
+
+    private List<Long> sequences(String suffix) throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(suffix))
+                    .map(name -> name.substring(0, name.length() - suffix.length()))
+                    .filter(seq -> seq.matches("\\d+"))
+                    .forEach(seq -> sequences.add(Long.parseLong(seq)));
+        }
+        sequences.sort(Long::compare);
+        return sequences;
+    }
+
+    private static ByteBuffer frame(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt(checksum(record));
+        buffer.put(record);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * @return false if the end of the file was reached before the buffer was filled
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static class Entry {
+        private final List<byte[]> records;
+        private final Runnable onDurable;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private long rolledSeq;
+
+        Entry(List<byte[]> records, Runnable onDurable) {
+            this.records = records;
+            this.onDurable = onDurable;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package dslab;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import org.junit.Test;
+
+import dslab.exception.MalformedInputException;
+
+public class EmailTest extends TestBase {
+
+    @Test
+    public void of_returnsCanonicalInstances() throws Exception {
+        Email parsed = Email.of("trillian@earth.planet");
+
+        err.checkThat(Email.of("trillian@earth.planet"), is(sameInstance(parsed)));
+        err.checkThat(Email.of("trillian", "earth.planet"), is(sameInstance(parsed)));
+        err.checkThat(Email.of("arthur@earth.planet").getDomain(), is(sameInstance(parsed.getDomain())));
+        err.checkThat(parsed, is(new Email("trillian", "earth.planet")));
+        err.checkThat(parsed.getUsername(), is("trillian"));
+        err.checkThat(parsed.toString(), is("trillian@earth.planet"));
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void of_rejectsMoreThanOneAt() throws Exception {
+        Email.of("trillian@earth@planet");
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void of_rejectsMissingDomain() throws Exception {
+        Email.of("trillian@ ");
+    }
+}
@@ -0,0 +1,46 @@
+package dslab;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MessageTest extends TestBase {
+
+    private static String commands(Message msg) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.writeCommands(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void writeCommands_encodesEachRecipientSubset() throws Exception {
+        Email trillian = Email.of("trillian@earth.planet");
+        Email zaphod = Email.of("zaphod@univer.ze");
+        Message msg = new Message(new ArrayList<>(Arrays.asList(trillian, zaphod)), Email.of("arthur@earth.planet"),
+                "hello", "data");
+
+        Message earth = msg.forRecipients(new ArrayList<>(Arrays.asList(trillian)));
+        err.checkThat(commands(earth), is("subject hello\ndata data\nto trillian@earth.planet\n"
+                + "from arthur@earth.planet\nsend\n"));
+        err.checkThat(commands(msg), is("subject hello\ndata data\nto trillian@earth.planet,zaphod@univer.ze\n"
+                + "from arthur@earth.planet\nsend\n"));
+    }
+
+    @Test
+    public void writeCommands_reflectsSetters() throws Exception {
+        Message msg = new Message(new ArrayList<>(Arrays.asList(Email.of("trillian@earth.planet"))),
+                Email.of("arthur@earth.planet"), "hello", "data");
+        commands(msg);
+
+        msg.setSubject("bye");
+        msg.setFrom(Email.of("ford@earth.planet"));
+
+        err.checkThat(commands(msg), is("subject bye\ndata data\nto trillian@earth.planet\n"
+                + "from ford@earth.planet\nsend\n"));
+    }
+}
@@ -0,0 +1,95 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.TestBase;
+
+public class BodyStoreTest extends TestBase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+    private BodyStore bodies;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("bodies").toPath();
+        bodies = new BodyStore(dir, 64);
+    }
+
+    @After
+    public void tearDown() {
+        bodies.close();
+    }
+
+    @Test
+    public void write_keepsDataReadable() throws IOException {
+        BodyStore.Body body = bodies.write("grüße aus dem all");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        err.checkThat(body.read(), is("grüße aus dem all"));
+        err.checkThat(out.toString(StandardCharsets.UTF_8), is("grüße aus dem all"));
+        err.checkThat(body.length(), is("grüße aus dem all".getBytes(StandardCharsets.UTF_8).length));
+    }
+
+    @Test
+    public void write_largerThanSegment_getsSegmentOfItsOwn() {
+        String large = "x".repeat(1000);
+        BodyStore.Body body = bodies.write(large);
+
+        err.checkThat(body.read(), is(large));
+    }
+
+    @Test
+    public void release_deletesSealedSegmentOnceNothingHoldsIt() {
+        BodyStore.Body first = bodies.write("a".repeat(40));
+        BodyStore.Body second = bodies.write("b".repeat(40));
+        bodies.retain(first);
+
+        bodies.release(first);
+        err.checkThat(Files.exists(dir.resolve("0.body")), is(true));
+        bodies.release(first);
+        err.checkThat(Files.exists(dir.resolve("0.body")), is(false));
+        err.checkThat(second.read(), is("b".repeat(40)));
+    }
+
+    @Test
+    public void mailboxStore_keepsDataOffHeapUntilLastHolderDeletes() {
+        Email trillian = new Email("trillian", "earth.planet");
+        Email arthur = new Email("arthur", "earth.planet");
+        MailboxStore store = new MailboxStore();
+        store.addUser(trillian);
+        store.addUser(arthur);
+        store.attach(bodies);
+
+        Message msg = new Message(new ArrayList<>(Arrays.asList(trillian, arthur)), new Email("zaphod", "univer.ze"),
+                "hello", "d".repeat(60));
+        store.deliver(msg).join();
+        bodies.write("next segment");
+
+        err.checkThat(msg.getBody() != null, is(true));
+        err.checkThat(store.get(arthur).get(msg.getId()).getData(), is("d".repeat(60)));
+        store.delete(trillian, msg.getId()).join();
+        err.checkThat(Files.exists(dir.resolve("0.body")), is(true));
+        store.delete(arthur, msg.getId()).join();
+        err.checkThat(Files.exists(dir.resolve("0.body")), is(false));
+    }
+}
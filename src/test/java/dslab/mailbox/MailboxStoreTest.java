@@ -0,0 +1,87 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.TestBase;
+
+public class MailboxStoreTest extends TestBase {
+
+    private final Email trillian = new Email("trillian", "earth.planet");
+    private final Email arthur = new Email("arthur", "earth.planet");
+    private MailboxStore store;
+
+    @Before
+    public void setUp() {
+        store = new MailboxStore();
+        store.addUser(trillian);
+        store.addUser(arthur);
+    }
+
+    private Message message(String subject, Email... to) {
+        return new Message(new ArrayList<>(Arrays.asList(to)), new Email("zaphod", "univer.ze"), subject, "data");
+    }
+
+    @Test
+    public void deliver_storesMessageForEveryKnownRecipient() {
+        Message msg = message("hello", trillian, arthur, new Email("unknown", "earth.planet"));
+        store.deliver(msg);
+
+        err.checkThat(store.get(trillian).get(msg.getId()).getSubject(), is("hello"));
+        err.checkThat(store.get(arthur).get(msg.getId()).getSubject(), is("hello"));
+        err.checkThat(store.get(new Email("unknown", "earth.planet")), is(nullValue()));
+    }
+
+    @Test
+    public void deliver_assignsUniqueIds() {
+        Message first = message("first", trillian);
+        Message second = message("second", trillian);
+        store.deliver(first);
+        store.deliver(second);
+
+        err.checkThat(first.getId() == second.getId(), is(false));
+        err.checkThat(store.get(trillian).size(), is(2));
+    }
+
+    @Test
+    public void add_ignoresDuplicateIds() {
+        Message msg = message("hello", trillian);
+        store.deliver(msg);
+
+        err.checkThat(store.get(trillian).add(msg), is(false));
+        err.checkThat(store.get(trillian).size(), is(1));
+    }
+
+    @Test
+    public void list_returnsMessagesInArrivalOrder() {
+        store.deliver(message("a", trillian));
+        store.deliver(message("b", trillian));
+        store.deliver(message("c", trillian));
+
+        List<String> subjects = new ArrayList<>();
+        for (Message m : store.get(trillian).list())
+            subjects.add(m.getSubject());
+
+        err.checkThat(subjects, is(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void remove_deletesOnlyTheGivenMessage() {
+        Message first = message("first", trillian);
+        store.deliver(first);
+        store.deliver(message("second", trillian));
+
+        err.checkThat(store.get(trillian).remove(first.getId()).getSubject(), is("first"));
+        err.checkThat(store.get(trillian).remove(first.getId()), is(nullValue()));
+        err.checkThat(store.get(trillian).list().size(), is(1));
+    }
+}
@@ -0,0 +1,164 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.TestBase;
+
+public class MessageLogTest extends TestBase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Email trillian = new Email("trillian", "earth.planet");
+    private final Email arthur = new Email("arthur", "earth.planet");
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("log").toPath();
+    }
+
+    private MailboxStore store() {
+        MailboxStore store = new MailboxStore();
+        store.addUser(trillian);
+        store.addUser(arthur);
+        return store;
+    }
+
+    private MessageLog open(MailboxStore store) throws IOException {
+        MessageLog log = MessageLog.open(dir, 1024, 100, 60000, store);
+        store.attach(log);
+        return log;
+    }
+
+    private Message message(String subject, Email... to) {
+        return new Message(new ArrayList<>(Arrays.asList(to)), new Email("zaphod", "univer.ze"), subject, "data");
+    }
+
+    @Test
+    public void reopen_restoresStoredAndDeletedMessages() throws IOException {
+        MailboxStore store = store();
+        MessageLog log = open(store);
+        Message kept = message("kept", trillian, arthur);
+        Message deleted = message("deleted", trillian);
+        store.deliver(kept).join();
+        store.deliver(deleted).join();
+        store.delete(arthur, kept.getId()).join();
+        store.delete(trillian, deleted.getId()).join();
+        log.close();
+
+        MailboxStore recovered = store();
+        open(recovered).close();
+
+        err.checkThat(recovered.get(trillian).get(kept.getId()).getSubject(), is("kept"));
+        err.checkThat(recovered.get(arthur).get(kept.getId()), is(nullValue()));
+        err.checkThat(recovered.get(trillian).get(deleted.getId()), is(nullValue()));
+        err.checkThat(recovered.get(trillian).size(), is(1));
+    }
+
+    @Test
+    public void reopen_neverReusesIds() throws IOException {
+        MailboxStore store = store();
+        MessageLog log = open(store);
+        Message first = message("first", trillian);
+        store.deliver(first).join();
+        store.delete(trillian, first.getId()).join();
+        log.close();
+
+        MailboxStore recovered = store();
+        MessageLog reopened = open(recovered);
+        Message second = message("second", trillian);
+        recovered.deliver(second).join();
+        reopened.close();
+
+        err.checkThat(second.getId() > first.getId(), is(true));
+    }
+
+    @Test
+    public void compact_keepsContentAcrossSegmentsAndSnapshot() throws IOException {
+        MailboxStore store = store();
+        MessageLog log = open(store);
+        for (int i = 0; i < 50; i++)
+            store.deliver(message("m" + i, trillian, arthur)).join();
+        store.delete(arthur, store.get(arthur).list().get(0).getId()).join();
+        log.compact();
+        store.deliver(message("after", arthur)).join();
+        log.close();
+
+        MailboxStore recovered = store();
+        open(recovered).close();
+
+        err.checkThat(recovered.get(trillian).size(), is(50));
+        err.checkThat(recovered.get(arthur).size(), is(50));
+        err.checkThat(recovered.get(trillian).list().get(0).getSubject(), is("m0"));
+        err.checkThat(recovered.get(arthur).list().get(49).getSubject(), is("after"));
+    }
+
+    @Test
+    public void compact_thenReopen_neverReusesIdsOfDeletedMessages() throws IOException {
+        MailboxStore store = store();
+        MessageLog log = open(store);
+        Message first = message("first", trillian);
+        store.deliver(first).join();
+        store.delete(trillian, first.getId()).join();
+        log.compact();
+        log.close();
+
+        MailboxStore recovered = store();
+        MessageLog reopened = open(recovered);
+        Message second = message("second", trillian);
+        recovered.deliver(second).join();
+        reopened.close();
+
+        err.checkThat(second.getId() > first.getId(), is(true));
+    }
+
+    @Test(timeout = 15000)
+    public void compact_whileDeliverIsInFlight_keepsTheMessage() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch compacted = new CountDownLatch(1);
+        MailboxStore store = store();
+        // Holds the delivery in the middle of moving its data off the heap until the log has been compacted
+        store.attach(new BodyStore(folder.newFolder("bodies").toPath(), 4096) {
+            @Override
+            public Body write(String data) {
+                writing.countDown();
+                try {
+                    compacted.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.write(data);
+            }
+        });
+        MessageLog log = open(store);
+        Message msg = message("racing", trillian);
+        CompletableFuture<Void> delivered = CompletableFuture.supplyAsync(() -> store.deliver(msg))
+                .thenCompose(f -> f);
+        writing.await();
+        log.compact();
+        compacted.countDown();
+        delivered.join();
+        log.close();
+
+        MailboxStore recovered = store();
+        open(recovered).close();
+
+        err.checkThat(recovered.get(trillian).get(msg.getId()).getSubject(), is("racing"));
+    }
+}
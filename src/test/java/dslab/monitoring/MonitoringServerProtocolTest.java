@@ -89,4 +89,19 @@ public class MonitoringServerProtocolTest extends TestBase {
         assertThat(output, containsString("127.0.0.1:42 2"));
         assertThat(output, containsString("127.0.0.1:43 1"));
     }
+
+    @Test(timeout = 15000)
+    public void batchedDatagram_countsEveryRecord() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            String batch = "127.0.0.1:42 foo@example.com\n127.0.0.1:43 foo@example.com\n127.0.0.1:42 bar@example.com\n";
+            socket.send(new DatagramPacket(batch.getBytes(), batch.length(), addr));
+        }
+
+        Thread.sleep(2500);
+        in.addLine("addresses");
+        Thread.sleep(2500);
+        String output = String.join(",", out.getLines());
+        assertThat(output, containsString("foo@example.com 2"));
+        assertThat(output, containsString("bar@example.com 1"));
+    }
 }
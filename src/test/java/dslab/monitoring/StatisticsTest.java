@@ -0,0 +1,145 @@
+package dslab.monitoring;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class StatisticsTest extends TestBase {
+
+    private static void parse(MonitoringListener listener, String datagram) {
+        byte[] bytes = datagram.getBytes(StandardCharsets.UTF_8);
+        listener.parse(bytes, bytes.length);
+    }
+
+    @Test
+    public void parse_countsEveryWellFormedRecord() {
+        Statistics statistics = new Statistics(1000, 60);
+        MonitoringListener listener = new MonitoringListener(null, statistics, "test");
+
+        parse(listener, "127.0.0.1:42 foo@example.com\r\n  127.0.0.1:43\tfoo@example.com \n\nmalformed\na b c\n127.0.0.1:42 bar@example.com");
+
+        err.checkThat(statistics.servers(), is(Map.of("127.0.0.1:42", 2L, "127.0.0.1:43", 1L)));
+        err.checkThat(statistics.addresses(), is(Map.of("foo@example.com", 2L, "bar@example.com", 1L)));
+    }
+
+    @Test
+    public void reusedBuffer_doesNotChangeStoredKeys() {
+        Statistics statistics = new Statistics(1000, 60);
+        MonitoringListener listener = new MonitoringListener(null, statistics, "test");
+        byte[] buffer = new byte[64];
+        byte[] first = "127.0.0.1:42 foo@example.com".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "127.0.0.1:43 bar@example.com".getBytes(StandardCharsets.UTF_8);
+
+        System.arraycopy(first, 0, buffer, 0, first.length);
+        listener.parse(buffer, first.length);
+        System.arraycopy(second, 0, buffer, 0, second.length);
+        listener.parse(buffer, second.length);
+
+        err.checkThat(statistics.addresses(), is(Map.of("foo@example.com", 1L, "bar@example.com", 1L)));
+    }
+
+    @Test(timeout = 15000)
+    public void concurrentReceivers_loseNoCounts() throws Exception {
+        Statistics statistics = new Statistics(1000, 60);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            MonitoringListener listener = new MonitoringListener(null, statistics, "test-" + t);
+            String datagram = "127.0.0.1:42 foo@example.com\n127.0.0.1:4" + t + " sender" + t + "@example.com\n";
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    parse(listener, datagram);
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        err.checkThat(statistics.addresses().get("foo@example.com"), is(40000L));
+        err.checkThat(statistics.servers().get("127.0.0.1:42"), is(50000L));
+        err.checkThat(statistics.addresses().get("sender3@example.com"), is(10000L));
+    }
+
+    private static ByteKey key(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return new ByteKey().set(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void windowedCounts_onlyIncludeRecentBuckets() {
+        Statistics statistics = new Statistics(1000, 60);
+        long start = 1_000_000;
+        for (int i = 0; i < 30; i++)
+            statistics.record(key("127.0.0.1:42"), key("foo@example.com"), start + i * 1000);
+        statistics.record(key("127.0.0.1:43"), key("bar@example.com"), start + 29_000);
+        long now = start + 29_500;
+
+        err.checkThat(statistics.servers(10_000, now), is(Map.of("127.0.0.1:42", 10L, "127.0.0.1:43", 1L)));
+        err.checkThat(statistics.servers(60_000, now), is(Map.of("127.0.0.1:42", 30L, "127.0.0.1:43", 1L)));
+        // The buckets of the first round of the ring have expired after the horizon
+        err.checkThat(statistics.servers(60_000, now + 45_000), is(Map.of("127.0.0.1:42", 15L, "127.0.0.1:43", 1L)));
+        // Totals are kept regardless
+        err.checkThat(statistics.servers().get("127.0.0.1:42"), is(30L));
+    }
+
+    @Test
+    public void topAddresses_returnsTheMostActiveSendersFirst() {
+        Statistics statistics = new Statistics(1000, 60);
+        long now = 1_000_000;
+        for (int i = 0; i < 5; i++)
+            statistics.record(key("127.0.0.1:42"), key("foo@example.com"), now);
+        for (int i = 0; i < 3; i++)
+            statistics.record(key("127.0.0.1:42"), key("bar@example.com"), now);
+        statistics.record(key("127.0.0.1:42"), key("baz@example.com"), now);
+
+        List<Map.Entry<String, Long>> top = statistics.topAddresses(2, 60_000, now);
+        err.checkThat(top, is(List.of(Map.entry("foo@example.com", 5L), Map.entry("bar@example.com", 3L))));
+    }
+
+    @Test
+    public void idleKeys_areEvictedFromWindowedCounts() {
+        Statistics statistics = new Statistics(1000, 60);
+        long now = 1_000_000;
+        statistics.record(key("127.0.0.1:42"), key("foo@example.com"), now);
+        statistics.record(key("127.0.0.1:42"), key("bar@example.com"), now + 59_000);
+
+        statistics.evictIdle(now + 61_000);
+
+        err.checkThat(statistics.tracked(), is(2));
+        err.checkThat(statistics.topAddresses(10, 60_000, now + 61_000), is(List.of(Map.entry("bar@example.com", 1L))));
+        err.checkThat(statistics.addresses().get("foo@example.com"), is(1L));
+    }
+
+    @Test
+    public void sketchMode_reportsTheBusiestSendersWithBoundedError() {
+        Statistics statistics = new Statistics(1000, 60, 3, 0.001, 0.01);
+        long now = 1_000_000;
+        int total = 0;
+        // Many light senders, interleaved with three heavy ones
+        for (int i = 0; i < 20000; i++) {
+            statistics.record(key("127.0.0.1:42"), key("sender" + i + "@example.com"), now);
+            total++;
+            if (i % 10 == 0) {
+                statistics.record(key("127.0.0.1:42"), key("heavy" + (i % 3) + "@example.com"), now);
+                total++;
+            }
+        }
+
+        Map<String, Long> addresses = statistics.addresses();
+        err.checkThat(addresses.keySet(), is(Set.of("heavy0@example.com", "heavy1@example.com", "heavy2@example.com")));
+        for (Map.Entry<String, Long> address : addresses.entrySet()) {
+            long exact = 667;
+            err.checkThat(address.getKey() + " is never underestimated", address.getValue() >= exact - 1, is(true));
+            err.checkThat(address.getKey() + " is within the error bound", address.getValue() <= exact + 0.001 * total, is(true));
+        }
+        err.checkThat(statistics.servers().get("127.0.0.1:42"), is((long) total));
+    }
+}
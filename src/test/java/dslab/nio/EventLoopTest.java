@@ -0,0 +1,104 @@
+package dslab.nio;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class EventLoopTest extends TestBase {
+
+    private static final int LIST_SIZE = 200_000;
+    private ServerSocketChannel server;
+    private EventLoop loop;
+
+    /**
+     * Echoes every line, and fails on "boom" like a broken protocol handler would. "list" is answered with more lines
+     * than fit into the socket buffers.
+     */
+    private static class EchoProtocol implements LineProtocol {
+        @Override
+        public void onOpen(LineChannel channel) {
+            channel.println("ok");
+        }
+
+        @Override
+        public void onLine(String line, LineChannel channel) {
+            if (line.equals("boom"))
+                throw new IllegalStateException("boom");
+            if (line.equals("list")) {
+                for (int i = 0; i < LIST_SIZE; i++)
+                    channel.println(i + " zaphod@univer.ze " + "x".repeat(100));
+                return;
+            }
+            channel.println(line);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        loop = new EventLoop("event-loop-test", EchoProtocol::new);
+        loop.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loop.shutdown();
+        loop.join(5000);
+        server.close();
+    }
+
+    private Socket connect() throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.socket().getLocalPort());
+        loop.register(server.accept());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    @Test(timeout = 15000)
+    public void protocolError_closesOnlyThatConnection() throws Exception {
+        try (Socket broken = connect(); Socket other = connect()) {
+            BufferedReader brokenIn = new BufferedReader(new InputStreamReader(broken.getInputStream()));
+            BufferedReader otherIn = new BufferedReader(new InputStreamReader(other.getInputStream()));
+            err.checkThat(brokenIn.readLine(), is("ok"));
+            err.checkThat(otherIn.readLine(), is("ok"));
+
+            new PrintWriter(broken.getOutputStream(), true).println("boom");
+            err.checkThat(brokenIn.readLine(), is((String) null));
+
+            new PrintWriter(other.getOutputStream(), true).println("still there");
+            err.checkThat(otherIn.readLine(), is("still there"));
+            err.checkThat(loop.isAlive(), is(true));
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void halfClosedPeer_stillGetsAllQueuedReplies() throws Exception {
+        try (Socket socket = connect()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            err.checkThat(in.readLine(), is("ok"));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("list");
+            out.println("quit");
+            socket.shutdownOutput();
+            // Lets the loop see the end of input while most of the reply is still queued
+            Thread.sleep(300);
+
+            int lines = 0;
+            while (in.readLine() != null)
+                lines++;
+            err.checkThat(lines, is(LIST_SIZE + 1));
+        }
+    }
+}
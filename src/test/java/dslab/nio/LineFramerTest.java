@@ -0,0 +1,68 @@
+package dslab.nio;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class LineFramerTest extends TestBase {
+
+    private static ReadableByteChannel channel(String data) {
+        return Channels.newChannel(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void read_splitsLinesAndStripsCarriageReturn() throws Exception {
+        LineFramer framer = new LineFramer(64, 1024);
+        List<String> lines = new ArrayList<>();
+
+        framer.read(channel("begin\r\nsubject hello\n"), lines::add);
+
+        err.checkThat(lines, is(Arrays.asList("begin", "subject hello")));
+    }
+
+    @Test
+    public void read_keepsPartialLineUntilCompleted() throws Exception {
+        LineFramer framer = new LineFramer(64, 1024);
+        List<String> lines = new ArrayList<>();
+
+        framer.read(channel("data hel"), lines::add);
+        err.checkThat(lines.isEmpty(), is(true));
+
+        framer.read(channel("lo\n"), lines::add);
+        err.checkThat(lines, is(Arrays.asList("data hello")));
+    }
+
+    @Test
+    public void read_growsBufferForLongLines() throws Exception {
+        LineFramer framer = new LineFramer(4, 1024);
+        List<String> lines = new ArrayList<>();
+        ReadableByteChannel channel = channel("data a rather long line\n");
+
+        while (framer.read(channel, lines::add) >= 0) {
+            // keep reading until the channel is drained
+        }
+
+        err.checkThat(lines, is(Arrays.asList("data a rather long line")));
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsLinesAboveMaximumLength() throws Exception {
+        LineFramer framer = new LineFramer(4, 8);
+        ReadableByteChannel channel = channel("0123456789abcdef\n");
+
+        while (framer.read(channel, line -> { }) >= 0) {
+            // the framer throws once the buffer can't grow any further
+        }
+    }
+}
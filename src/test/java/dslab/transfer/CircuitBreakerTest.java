@@ -0,0 +1,51 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class CircuitBreakerTest extends TestBase {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        err.checkThat(breaker.allowRequest(), is(true));
+        breaker.onFailure();
+
+        err.checkThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        err.checkThat(breaker.allowRequest(), is(false));
+    }
+
+    @Test
+    public void halfOpen_letsSingleTrialThrough() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.onFailure();
+        Thread.sleep(100);
+
+        err.checkThat(breaker.allowRequest(), is(true));
+        err.checkThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        err.checkThat(breaker.allowRequest(), is(false));
+        breaker.onSuccess();
+        err.checkThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+        err.checkThat(breaker.allowRequest(), is(true));
+    }
+
+    @Test
+    public void halfOpen_failedTrialOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.onFailure();
+        Thread.sleep(100);
+        breaker.allowRequest();
+        breaker.onFailure();
+
+        err.checkThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+        err.checkThat(breaker.allowRequest(), is(false));
+    }
+}
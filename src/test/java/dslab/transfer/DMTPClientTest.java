@@ -0,0 +1,207 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.startsWith;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.ComponentFactory;
+import dslab.Constants;
+import dslab.Email;
+import dslab.Message;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.exception.BatchRejectedException;
+import dslab.exception.PipeliningRejectedException;
+import dslab.mailbox.IMailboxServer;
+import dslab.util.Config;
+
+public class DMTPClientTest extends TestBase {
+
+    private IMailboxServer mailbox;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        mailbox = ComponentFactory.createMailboxServer("mailbox-earth-planet", in, out);
+        int port = new Config("mailbox-earth-planet").getInt("dmtp.tcp.port");
+        address = new InetSocketAddress("127.0.0.1", port);
+        new Thread(mailbox).start();
+        Sockets.waitForSocket("localhost", port, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown");
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    private Message message(String subject, String... to) throws Exception {
+        ArrayList<Email> recipients = new ArrayList<>();
+        for (String address : to)
+            recipients.add(new Email(address));
+        return new Message(recipients, new Email("zaphod@univer.ze"), subject, "data of " + subject);
+    }
+
+    private void sendBatch(boolean pipelined, boolean batching) throws Exception {
+        DMTPClient client = new DMTPClient(address, 5000, pipelined, batching);
+        client.open();
+        try {
+            List<String> errors = client.send(Arrays.asList(
+                    message("first", "trillian@earth.planet"),
+                    message("second", "nobody@earth.planet", "trillian@earth.planet"),
+                    message("third", "nobody@earth.planet")));
+
+            err.checkThat(errors.get(0), is(nullValue()));
+            err.checkThat(errors.get(1), startsWith("error unknown recipient"));
+            err.checkThat(errors.get(2), startsWith("error unknown recipient"));
+            // All replies have been consumed, so the session can be reused
+            err.checkThat(client.send(message("fourth", "trillian@earth.planet")), is(nullValue()));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void pipelined_correlatesRepliesOfSeveralMessages() throws Exception {
+        sendBatch(true, false);
+    }
+
+    @Test(timeout = 15000)
+    public void lockstep_correlatesRepliesOfSeveralMessages() throws Exception {
+        sendBatch(false, false);
+    }
+
+    @Test(timeout = 15000)
+    public void batched_correlatesStatusesOfSeveralMessages() throws Exception {
+        sendBatch(false, true);
+    }
+
+    @Test(timeout = 15000, expected = BatchRejectedException.class)
+    public void batching_unsupportedByServer_isReportedAsRejection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread fake = new Thread(() -> {
+                try (Socket s = server.accept();
+                     BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                     PrintWriter writer = new PrintWriter(s.getOutputStream(), true)) {
+                    writer.println("ok DMTP");
+                    reader.readLine();
+                    writer.println("ok");
+                    reader.readLine();
+                    writer.println("error protocol error");
+                } catch (Exception ignored) {
+                    // The client closes the connection
+                }
+            });
+            fake.start();
+            DMTPClient client = new DMTPClient(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 5000, true, true);
+            try {
+                client.open();
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void batching_connectionLostDuringNegotiation_isNotReportedAsRejection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread fake = new Thread(() -> {
+                try (Socket s = server.accept();
+                     BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                     PrintWriter writer = new PrintWriter(s.getOutputStream(), true)) {
+                    writer.println("ok DMTP");
+                    reader.readLine();
+                    writer.println("ok");
+                    reader.readLine();
+                } catch (Exception ignored) {
+                    // The client closes the connection
+                }
+            });
+            fake.start();
+            DMTPClient client = new DMTPClient(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 5000, true, true);
+            try {
+                client.open();
+                err.addError(new AssertionError("Expected the lost connection to be reported"));
+            } catch (IOException e) {
+                err.checkThat(e instanceof BatchRejectedException, is(false));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test(timeout = 15000, expected = PipeliningRejectedException.class)
+    public void pipelined_protocolError_isReportedAsRejection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread fake = new Thread(() -> {
+                try (Socket s = server.accept();
+                     BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                     PrintWriter writer = new PrintWriter(s.getOutputStream(), true)) {
+                    writer.println("ok DMTP");
+                    reader.readLine();
+                    writer.println("ok");
+                    reader.readLine();
+                    writer.println("error protocol error");
+                } catch (Exception ignored) {
+                    // The client closes the connection
+                }
+            });
+            fake.start();
+            DMTPClient client = new DMTPClient(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 5000, true);
+            client.open();
+            try {
+                client.send(message("hello", "trillian@earth.planet"));
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void pipelined_brokenSession_reportsResultsOfAnsweredMessages() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread fake = new Thread(() -> {
+                try (Socket s = server.accept();
+                     BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                     PrintWriter writer = new PrintWriter(s.getOutputStream(), true)) {
+                    writer.println("ok DMTP");
+                    reader.readLine();
+                    writer.println("ok");
+                    // Answers the first message completely, then goes away
+                    for (String reply : new String[]{"ok", "ok", "ok 1", "ok", "ok"})
+                        writer.println(reply);
+                } catch (Exception ignored) {
+                    // The client closes the connection
+                }
+            });
+            fake.start();
+            DMTPClient client = new DMTPClient(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 5000, true);
+            client.open();
+            List<String> results = new ArrayList<>();
+            try {
+                client.send(Arrays.asList(message("first", "trillian@earth.planet"),
+                        message("second", "trillian@earth.planet")), results);
+                err.addError(new AssertionError("Expected the broken session to be reported"));
+            } catch (IOException e) {
+                err.checkThat(results, is(Arrays.asList((String) null)));
+            } finally {
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.TestBase;
+
+public class DeliveryLanesTest extends TestBase {
+
+    private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(1);
+    private final Spool spool = Spool.inMemory();
+    private RetryScheduler scheduler;
+    private DeliveryLanes lanes;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new RetryScheduler(queue, spool, 60000, 60000, 600000);
+        lanes = new DeliveryLanes(queue, spool, scheduler, null, new RoutingTable("domains.properties"),
+                1, 10, 60000, 10, 3, 1000, null);
+    }
+
+    @After
+    public void tearDown() {
+        lanes.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void bounce_fullQueue_parksErrorMailInsteadOfBlocking() {
+        Message msg = new Message(new ArrayList<>(Arrays.asList(new Email("zaphod", "univer.ze"))),
+                new Email("arthur", "earth.planet"), "hello", "data");
+        lanes.bounce(msg, "error first");
+        err.checkThat(queue.size(), is(1));
+
+        lanes.bounce(msg, "error second");
+
+        err.checkThat(queue.size(), is(1));
+        err.checkThat(scheduler.waiting(), is(1));
+    }
+
+    @Test(timeout = 5000)
+    public void worker_unexpectedError_settlesBreakerAndRetries() throws Exception {
+        DMTPConnectionPool failing = new DMTPConnectionPool(1, 1000, 1000, false, false) {
+            @Override
+            public DMTPClient borrow(String domain, InetSocketAddress address) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        DeliveryLanes failingLanes = new DeliveryLanes(queue, spool, scheduler, failing,
+                new RoutingTable("domains.properties"), 1, 10, 60000, 10, 1, 50, null);
+        try {
+            Message msg = new Message(new ArrayList<>(Arrays.asList(new Email("zaphod", "univer.ze"))),
+                    new Email("arthur", "earth.planet"), "hello", "data");
+            spool.accept(msg);
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", 11624);
+            CountDownLatch first = new CountDownLatch(1);
+            failingLanes.dispatch(new Delivery(msg, "univer.ze", address, first::countDown));
+            err.checkThat(first.await(2, TimeUnit.SECONDS), is(true));
+
+            // Once the breaker is half open, the failing trial has to open it again
+            Thread.sleep(100);
+            CountDownLatch trial = new CountDownLatch(1);
+            failingLanes.dispatch(new Delivery(msg, "univer.ze", address, trial::countDown));
+            err.checkThat(trial.await(2, TimeUnit.SECONDS), is(true));
+
+            err.checkThat(failingLanes.describe().get(0), is("univer.ze queued 0 breaker OPEN"));
+            err.checkThat(scheduler.waiting(), is(2));
+        } finally {
+            failingLanes.shutdown();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void idleLane_isRemovedWithItsWorkers() throws Exception {
+        DMTPConnectionPool failing = new DMTPConnectionPool(1, 1000, 1000, false, false) {
+            @Override
+            public DMTPClient borrow(String domain, InetSocketAddress address) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        DeliveryLanes idleLanes = new DeliveryLanes(queue, spool, scheduler, failing,
+                new RoutingTable("domains.properties"), 1, 10, 100, 10, 3, 1000, null);
+        try {
+            Message msg = new Message(new ArrayList<>(Arrays.asList(new Email("zaphod", "univer.ze"))),
+                    new Email("arthur", "earth.planet"), "hello", "data");
+            spool.accept(msg);
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", 11624);
+            CountDownLatch done = new CountDownLatch(1);
+            idleLanes.dispatch(new Delivery(msg, "univer.ze", address, done::countDown));
+            err.checkThat(done.await(2, TimeUnit.SECONDS), is(true));
+            err.checkThat(idleLanes.describe().size(), is(1));
+
+            Thread.sleep(500);
+
+            err.checkThat(idleLanes.describe().isEmpty(), is(true));
+            err.checkThat(Thread.getAllStackTraces().keySet().stream()
+                    .anyMatch(t -> t.getName().startsWith("lane-univer.ze")), is(false));
+
+            CountDownLatch again = new CountDownLatch(1);
+            idleLanes.dispatch(new Delivery(msg, "univer.ze", address, again::countDown));
+            err.checkThat(again.await(2, TimeUnit.SECONDS), is(true));
+        } finally {
+            idleLanes.shutdown();
+        }
+    }
+}
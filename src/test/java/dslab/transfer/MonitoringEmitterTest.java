@@ -0,0 +1,73 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import dslab.Email;
+import dslab.TestBase;
+
+public class MonitoringEmitterTest extends TestBase {
+
+    @Test(timeout = 10000)
+    public void recordsOfOneFlush_areSentInOneDatagram() throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0)) {
+            receiver.setSoTimeout(5000);
+            // Long flush interval, so that all records are buffered before the first flush
+            MonitoringEmitter emitter = new MonitoringEmitter("127.0.0.1", receiver.getLocalPort(), "127.0.0.1:42", 16, 1400, 500);
+            try {
+                emitter.delivered(new Email("foo@example.com"));
+                emitter.delivered(new Email("bar@example.com"));
+                emitter.delivered(new Email("foo@example.com"));
+
+                byte[] buffer = new byte[2048];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                receiver.receive(packet);
+                String datagram = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                err.checkThat(datagram, is("127.0.0.1:42 foo@example.com\n127.0.0.1:42 bar@example.com\n127.0.0.1:42 foo@example.com\n"));
+            } finally {
+                emitter.close();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void fullBuffer_dropsRecordsWithoutBlocking() throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0)) {
+            MonitoringEmitter emitter = new MonitoringEmitter("127.0.0.1", receiver.getLocalPort(), "127.0.0.1:42", 2, 1400, 60000);
+            try {
+                for (int i = 0; i < 5; i++)
+                    emitter.delivered(new Email("foo@example.com"));
+                err.checkThat(emitter.dropped(), is(3L));
+            } finally {
+                emitter.close();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void recordsExceedingTheDatagramSize_areSplitAcrossDatagrams() throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0)) {
+            receiver.setSoTimeout(5000);
+            String record = "127.0.0.1:42 foo@example.com\n";
+            MonitoringEmitter emitter = new MonitoringEmitter("127.0.0.1", receiver.getLocalPort(), "127.0.0.1:42", 16, record.length() * 2, 500);
+            try {
+                for (int i = 0; i < 3; i++)
+                    emitter.delivered(new Email("foo@example.com"));
+
+                byte[] buffer = new byte[2048];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                receiver.receive(packet);
+                err.checkThat(packet.getLength(), is(record.length() * 2));
+                receiver.receive(packet);
+                err.checkThat(packet.getLength(), is(record.length()));
+            } finally {
+                emitter.close();
+            }
+        }
+    }
+}
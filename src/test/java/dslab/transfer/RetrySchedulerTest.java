@@ -0,0 +1,87 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.TestBase;
+
+public class RetrySchedulerTest extends TestBase {
+
+    private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+    private final Spool spool = Spool.inMemory();
+    private RetryScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new RetryScheduler(queue, spool, 50, 200, 1000);
+        scheduler.start();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    private Message message() {
+        Message msg = new Message(new ArrayList<>(Arrays.asList(new Email("trillian", "earth.planet"),
+                new Email("zaphod", "univer.ze"))), new Email("arthur", "earth.planet"), "hello", "data");
+        spool.accept(msg);
+        return msg;
+    }
+
+    @Test
+    public void schedule_requeuesOnlyRecipientsOfFailedDomainAfterDelay() throws InterruptedException {
+        Message msg = message();
+        long start = System.currentTimeMillis();
+        err.checkThat(scheduler.schedule(msg, "univer.ze"), is(true));
+
+        Message retry = queue.poll(2, TimeUnit.SECONDS);
+        err.checkThat(retry != null, is(true));
+        err.checkThat(System.currentTimeMillis() - start >= 25, is(true));
+        err.checkThat(retry.printTo(), is("zaphod@univer.ze"));
+        err.checkThat(retry.getSubject(), is("hello"));
+        err.checkThat(retry.getId() == msg.getId(), is(false));
+    }
+
+    @Test
+    public void schedule_givesUpAfterDeadline() throws InterruptedException {
+        RetryScheduler shortDeadline = new RetryScheduler(queue, spool, 10, 20, 100);
+        shortDeadline.start();
+        try {
+            Message msg = message();
+            boolean scheduled = shortDeadline.schedule(msg, "univer.ze");
+            int attempts = 0;
+            while (scheduled && attempts < 100) {
+                msg = queue.poll(2, TimeUnit.SECONDS);
+                scheduled = msg != null && shortDeadline.schedule(msg, "univer.ze");
+                attempts++;
+            }
+            err.checkThat(scheduled, is(false));
+            err.checkThat(attempts > 1, is(true));
+        } finally {
+            shortDeadline.shutdown();
+        }
+    }
+
+    @Test
+    public void finished_resetsAttempts() throws InterruptedException {
+        Message msg = message();
+        scheduler.schedule(msg, "univer.ze");
+        Message retry = queue.poll(2, TimeUnit.SECONDS);
+        scheduler.finished(retry);
+
+        err.checkThat(scheduler.schedule(retry, "univer.ze"), is(true));
+        err.checkThat(scheduler.waiting(), is(1));
+    }
+}
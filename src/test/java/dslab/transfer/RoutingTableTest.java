@@ -0,0 +1,60 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class RoutingTableTest extends TestBase {
+
+    @Test
+    public void lookup_returnsConfiguredHostAndPort() throws IOException {
+        RoutingTable routes = new RoutingTable("domains.properties");
+
+        err.checkThat(routes.lookup("earth.planet"), is(new InetSocketAddress("127.0.0.1", 11622)));
+        err.checkThat(routes.lookup("univer.ze"), is(new InetSocketAddress("127.0.0.1", 11624)));
+        err.checkThat(routes.size(), is(2));
+    }
+
+    @Test
+    public void lookup_unknownDomain_returnsNull() throws IOException {
+        RoutingTable routes = new RoutingTable("domains.properties");
+
+        err.checkThat(routes.lookup("unknown.domain"), is(nullValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingResource_throws() throws IOException {
+        new RoutingTable("does-not-exist.properties");
+    }
+
+    @Test
+    public void reload_unresolvableHost_keepsPreviousRoute() throws Exception {
+        URL existing = RoutingTable.class.getClassLoader().getResource("domains.properties");
+        Assume.assumeTrue("file".equals(existing.getProtocol()));
+        File file = new File(new File(existing.toURI()).getParentFile(), "routing-table-test.properties");
+        try {
+            Files.write(file.toPath(), "earth.planet=127.0.0.1:11622\n".getBytes(StandardCharsets.UTF_8));
+            RoutingTable routes = new RoutingTable(file.getName());
+
+            Files.write(file.toPath(), ("earth.planet=does-not-exist.invalid:11622\n"
+                    + "univer.ze=does-not-exist.invalid:11624\n").getBytes(StandardCharsets.UTF_8));
+            routes.reload();
+
+            err.checkThat(routes.lookup("earth.planet"), is(new InetSocketAddress("127.0.0.1", 11622)));
+            err.checkThat(routes.lookup("univer.ze"), is(nullValue()));
+        } finally {
+            file.delete();
+        }
+    }
+}
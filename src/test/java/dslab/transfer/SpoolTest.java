@@ -0,0 +1,113 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.Email;
+import dslab.Message;
+import dslab.TestBase;
+
+public class SpoolTest extends TestBase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("spool").toPath();
+    }
+
+    private Spool open() throws IOException {
+        return Spool.open(dir, 1024, 100, 60000);
+    }
+
+    private Message message(String subject) {
+        return new Message(new ArrayList<>(Arrays.asList(new Email("trillian", "earth.planet"))),
+                new Email("zaphod", "univer.ze"), subject, "data");
+    }
+
+    private List<String> subjects(List<Message> messages) {
+        List<String> subjects = new ArrayList<>();
+        for (Message m : messages)
+            subjects.add(m.getSubject());
+        return subjects;
+    }
+
+    @Test
+    public void reopen_replaysOnlyUndeliveredMessages() throws IOException {
+        Spool spool = open();
+        Message delivered = message("delivered");
+        spool.accept(delivered).join();
+        spool.accept(message("pending 1")).join();
+        spool.accept(message("pending 2")).join();
+        spool.done(delivered);
+        spool.close();
+
+        Spool reopened = open();
+        List<Message> undelivered = reopened.undelivered();
+        reopened.close();
+
+        err.checkThat(subjects(undelivered), is(Arrays.asList("pending 1", "pending 2")));
+        err.checkThat(undelivered.get(0).getTo().get(0).toString(), is("trillian@earth.planet"));
+    }
+
+    @Test
+    public void reopen_doesNotReuseIds() throws IOException {
+        Spool spool = open();
+        Message first = message("first");
+        spool.accept(first).join();
+        spool.done(first);
+        spool.close();
+
+        Spool reopened = open();
+        Message second = message("second");
+        reopened.accept(second).join();
+        reopened.close();
+
+        err.checkThat(second.getId() > first.getId(), is(true));
+    }
+
+    @Test
+    public void compact_keepsOnlyPendingMessages() throws IOException {
+        Spool spool = open();
+        for (int i = 0; i < 40; i++) {
+            Message msg = message("m" + i);
+            spool.accept(msg).join();
+            if (i % 2 == 0)
+                spool.done(msg);
+        }
+        spool.compact();
+        spool.accept(message("after")).join();
+        spool.close();
+
+        Spool reopened = open();
+        List<String> subjects = subjects(reopened.undelivered());
+        reopened.close();
+
+        err.checkThat(subjects.size(), is(21));
+        err.checkThat(subjects.get(0), is("m1"));
+        err.checkThat(subjects.get(20), is("after"));
+    }
+
+    @Test
+    public void inMemory_onlyAssignsIds() {
+        Spool spool = Spool.inMemory();
+        Message msg = message("hello");
+        spool.accept(msg).join();
+
+        err.checkThat(msg.getId(), is(1));
+        err.checkThat(spool.undelivered().isEmpty(), is(true));
+    }
+}
@@ -128,4 +128,23 @@ public class TransferServerProtocolTest extends TestBase {
             client.sendAndVerify("quit", "ok bye");
         }
     }
+
+    @Test(timeout = 5000)
+    public void batch_repliesWithOneStatusPerMessage() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("batch", "ok batch");
+            client.send("batch 2");
+            client.send("from trillian@earth.planet");
+            client.send("to arthur@earth.planet");
+            client.send("subject hello");
+            client.send("data hello from junit");
+            client.send("send");
+            client.send("from trillian@earth.planet");
+            client.send("subject no recipient");
+            client.sendAndVerify("send", "ok|error no receiver");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class CommandLineTest extends TestBase {
+
+    @Test
+    public void parse_splitsTokensAndKeepsRestOfLine() {
+        CommandLine line = new CommandLine().parse("subject  hello   world ");
+
+        err.checkThat(line.tokens(), is(3));
+        err.checkThat(line.is("subject"), is(true));
+        err.checkThat(line.is("sub"), is(false));
+        err.checkThat(line.token(1), is("hello"));
+        err.checkThat(line.rest(1), is("hello   world "));
+        err.checkThat(line.rest(3), is(""));
+        err.checkThat(line.token(3), is(""));
+    }
+
+    @Test
+    public void parse_reusesInstanceForNextLine() {
+        CommandLine line = new CommandLine();
+
+        line.parse("show 42");
+        err.checkThat(line.number(1), is(42));
+
+        line.parse("  ");
+        err.checkThat(line.tokens(), is(0));
+        err.checkThat(line.is("show"), is(false));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void number_rejectsNonDigits() {
+        new CommandLine().parse("delete 4x").number(1);
+    }
+}
@@ -0,0 +1,53 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import dslab.TestBase;
+
+public class EventLogTest extends TestBase {
+
+    @Test
+    public void info_formatsEventsInOrderOnTheSourceLogger() {
+        Logger logger = Logger.getLogger(EventLogTest.class.getName());
+        List<String> records = Collections.synchronizedList(new ArrayList<>());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel() == Level.INFO)
+                    records.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        logger.addHandler(handler);
+        try {
+            EventLog events = EventLog.forClass(EventLogTest.class);
+            events.info("Took message {} from queue", 42);
+            events.info("Retrying {} to {} in {}ms (attempt {})", 7, "earth.planet", 100L, 2);
+            events.fine("Not logged {}", "at all");
+            EventLog.flush(5000);
+
+            err.checkThat(records, is(Arrays.asList("Took message 42 from queue",
+                    "Retrying 7 to earth.planet in 100ms (attempt 2)")));
+        } finally {
+            logger.removeHandler(handler);
+        }
+    }
+}